@@ -58,6 +58,7 @@ dependencies {
 
     testImplementation("junit:junit:4.12")
     testImplementation("org.mockito:mockito-core:3.5.5")
+    testImplementation("com.squareup.okhttp3:mockwebserver:3.14.9")
     testImplementation("org.powermock:powermock-module-junit4:$powermockVersion")
     testImplementation("org.powermock:powermock-api-mockito2:$powermockVersion")
     testImplementation("net.dv8tion:JDA:4.2.0_196")
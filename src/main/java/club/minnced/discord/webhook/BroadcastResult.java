@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Aggregate result of a broadcast, which is updated as the targeted webhooks complete.
+ * <br>Unlike a list of futures, this keeps only counters and the failures, a slow or failing webhook
+ * does not hold up the rest of the group.
+ *
+ * <p>Completions are streamed to the {@link Listener} of the broadcast as they arrive.
+ * Use {@link #whenSucceeded(int)} or {@link #whenQuorum()} to continue once enough webhooks received the message,
+ * and {@link #whenDone()} to wait for all of them.
+ *
+ * @see club.minnced.discord.webhook.WebhookCluster#broadcast(club.minnced.discord.webhook.send.WebhookMessage, Listener)
+ */
+public final class BroadcastResult {
+    private static final Logger LOG = LoggerFactory.getLogger(BroadcastResult.class);
+
+    private final int total;
+    private final Listener listener;
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    // keyed by client, the same webhook can be a member of the cluster with multiple clients
+    private final Map<WebhookClient, Throwable> failures = new ConcurrentHashMap<>();
+    private final List<Threshold> thresholds = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<BroadcastResult> done = new CompletableFuture<>();
+
+    BroadcastResult(int total, @Nullable Listener listener) {
+        this.total = total;
+        this.listener = listener;
+        if (total == 0)
+            done.complete(this);
+    }
+
+    /**
+     * The amount of targeted webhooks.
+     *
+     * @return The amount of targets
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * The amount of webhooks which received the message so far.
+     *
+     * @return The amount of successful targets
+     */
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * The amount of webhooks which failed so far.
+     *
+     * @return The amount of failed targets
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * The amount of webhooks which have not completed yet.
+     *
+     * @return The amount of pending targets
+     */
+    public int getPending() {
+        return total - succeeded.get() - failed.get();
+    }
+
+    /**
+     * The failures so far, by the client which failed.
+     *
+     * @return Unmodifiable copy of the failures
+     */
+    @NotNull
+    public Map<WebhookClient, Throwable> getFailures() {
+        return Collections.unmodifiableMap(new HashMap<>(failures));
+    }
+
+    /**
+     * Future which completes once the provided amount of webhooks received the message,
+     * or once that is no longer possible because too many webhooks failed.
+     * <br>The future is never completed exceptionally, check {@link #getSucceeded()} to tell both cases apart.
+     *
+     * @param  count
+     *         The amount of successful targets
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the count is negative or exceeds the total
+     *
+     * @return Future completed with this result
+     */
+    @NotNull
+    public CompletableFuture<BroadcastResult> whenSucceeded(int count) {
+        if (count < 0 || count > total)
+            throw new IllegalArgumentException("Count must be between 0 and " + total);
+        final Threshold threshold = new Threshold(count);
+        thresholds.add(threshold);
+        // completions before the threshold was added
+        check(threshold);
+        return threshold.future;
+    }
+
+    /**
+     * Future which completes once the majority of the webhooks received the message,
+     * or once that is no longer possible. For a broadcast without targets, it is already completed.
+     *
+     * @return Future completed with this result
+     *
+     * @see    #whenSucceeded(int)
+     */
+    @NotNull
+    public CompletableFuture<BroadcastResult> whenQuorum() {
+        return whenSucceeded(Math.min(total, total / 2 + 1));
+    }
+
+    /**
+     * Future which completes once all webhooks have completed, successfully or not.
+     *
+     * @return Future completed with this result
+     */
+    @NotNull
+    public CompletableFuture<BroadcastResult> whenDone() {
+        return done;
+    }
+
+    void complete(@NotNull WebhookClient client, @Nullable ReadonlyMessage message, @Nullable Throwable error) {
+        if (error == null) {
+            succeeded.incrementAndGet();
+        }
+        else {
+            failures.put(client, error);
+            failed.incrementAndGet();
+        }
+        if (listener != null) {
+            try {
+                listener.onComplete(client.getId(), message, error);
+            }
+            catch (Throwable e) {
+                LOG.error("Broadcast listener threw an exception", e);
+            }
+        }
+        for (Threshold threshold : thresholds)
+            check(threshold);
+        if (getPending() == 0)
+            done.complete(this);
+    }
+
+    private void check(Threshold threshold) {
+        if (succeeded.get() >= threshold.count || failed.get() > total - threshold.count) {
+            threshold.future.complete(this);
+            thresholds.remove(threshold);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BroadcastResult(total=" + total + ", succeeded=" + getSucceeded() + ", failed=" + getFailed() + ")";
+    }
+
+    private static final class Threshold {
+        private final int count;
+        private final CompletableFuture<BroadcastResult> future = new CompletableFuture<>();
+
+        private Threshold(int count) {
+            this.count = count;
+        }
+    }
+
+    /**
+     * Listener for the completions of a broadcast.
+     * <br>The listener is called on the thread which completed the request and should not block.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called once for every targeted webhook, as soon as its request completed.
+         *
+         * @param webhookId
+         *        The id of the webhook
+         * @param message
+         *        The sent message, null if the request failed or the client does not wait for messages
+         * @param error
+         *        The failure, or null if the message was sent
+         */
+        void onComplete(long webhookId, @Nullable ReadonlyMessage message, @Nullable Throwable error);
+    }
+}
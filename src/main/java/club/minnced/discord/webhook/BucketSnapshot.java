@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Small JSON file with the rate-limit state of webhooks, which lets clients resume their buckets after a restart.
+ * <br>Each webhook id maps to its bucket hash, limit, remaining uses and the wall clock time of the reset.
+ * Entries whose reset has passed carry no information beyond the limit and are dropped.
+ *
+ * <p>The file is parsed once by the first client using it and kept in memory while clients are open.
+ * Closing clients only update the memory, the file is written when the last of them closes
+ * or, for clients that were never closed, on shutdown of the JVM.
+ * <br>The file is replaced atomically. Concurrent writes of other processes may lose the entries of one of them,
+ * which only results in a cold start.
+ */
+final class BucketSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(BucketSnapshot.class);
+    // guarded by BucketSnapshot.class
+    private static final Map<Path, BucketSnapshot> SNAPSHOTS = new HashMap<>();
+    private static boolean isHookRegistered;
+
+    private final File file;
+    private final JSONObject json;
+    private int clients;
+    private boolean isDirty;
+
+    private BucketSnapshot(File file) {
+        this.file = file;
+        this.json = read(file);
+    }
+
+    /**
+     * Restores the state of the provided webhook into its bucket.
+     * <br>Every restored client has to {@link #save(File, long, WebhookClient.Bucket) save} its state exactly once.
+     *
+     * @param  file
+     *         The snapshot file
+     * @param  id
+     *         The webhook id
+     * @param  client
+     *         The client to restore
+     */
+    static void restore(@NotNull File file, long id, @NotNull WebhookClient client) {
+        final JSONObject entry;
+        synchronized (BucketSnapshot.class) {
+            final BucketSnapshot snapshot = open(file);
+            snapshot.clients++;
+            entry = snapshot.json.optJSONObject(Long.toUnsignedString(id));
+        }
+        if (entry == null)
+            return;
+        final String hash = entry.optString("bucket", null);
+        // clients with the same bucket hash share the bucket right away
+        final WebhookClient.Bucket bucket = hash == null ? client.bucket : WebhookClient.Bucket.shared(hash);
+        if (bucket.restore(entry, System.currentTimeMillis()))
+            LOG.debug("Restored rate-limit bucket of webhook {}", Long.toUnsignedString(id));
+        client.bucket = bucket;
+    }
+
+    /**
+     * Saves the state of the bucket of the provided webhook.
+     * <br>The file is written, without stale entries, once the last restored client of the file has been saved.
+     *
+     * @param  file
+     *         The snapshot file
+     * @param  id
+     *         The webhook id
+     * @param  bucket
+     *         The current bucket of the webhook
+     */
+    static void save(@NotNull File file, long id, @NotNull WebhookClient.Bucket bucket) {
+        final JSONObject entry = bucket.snapshot(System.currentTimeMillis());
+        synchronized (BucketSnapshot.class) {
+            final BucketSnapshot snapshot = open(file);
+            if (entry != null)
+                snapshot.json.put(Long.toUnsignedString(id), entry);
+            else
+                snapshot.json.remove(Long.toUnsignedString(id));
+            snapshot.isDirty = true;
+            if (--snapshot.clients > 0)
+                return;
+            SNAPSHOTS.remove(key(file));
+            snapshot.flush();
+        }
+    }
+
+    // writes the snapshots of clients which are still open when the JVM exits
+    private static synchronized void flushAll() {
+        for (BucketSnapshot snapshot : SNAPSHOTS.values())
+            snapshot.flush();
+    }
+
+    @NotNull
+    private static BucketSnapshot open(File file) {
+        if (!isHookRegistered) {
+            Runtime.getRuntime().addShutdownHook(new Thread(BucketSnapshot::flushAll, "Webhook-BucketSnapshot Shutdown"));
+            isHookRegistered = true;
+        }
+        return SNAPSHOTS.computeIfAbsent(key(file), k -> new BucketSnapshot(file));
+    }
+
+    private static Path key(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    private void flush() {
+        if (!isDirty)
+            return;
+        final long now = System.currentTimeMillis();
+        final Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            final JSONObject other = json.optJSONObject(keys.next());
+            if (other == null || other.optLong("reset") <= now)
+                keys.remove();
+        }
+        try {
+            write(file, json);
+            isDirty = false;
+        }
+        catch (IOException e) {
+            LOG.warn("Could not save rate-limit snapshot to {}", file, e);
+        }
+    }
+
+    @NotNull
+    private static JSONObject read(File file) {
+        if (!file.isFile())
+            return new JSONObject();
+        try {
+            return new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        }
+        catch (IOException | JSONException e) {
+            LOG.warn("Ignoring unreadable rate-limit snapshot {}", file, e);
+            return new JSONObject();
+        }
+    }
+
+    private static void write(File file, JSONObject json) throws IOException {
+        final Path target = file.toPath().toAbsolutePath();
+        final Path temp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+        try {
+            Files.write(temp, json.toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global rate-limit shared by all {@link WebhookClient} instances of this JVM.
+ * <br>Discord applies the global rate-limit to all requests from the same source,
+ * a global 429 on one client therefore pauses the queues of all clients until the limit is reset.
+ */
+final class GlobalRateLimit {
+    // System.nanoTime() at which the global rate-limit is over
+    private static final AtomicLong resetTime = new AtomicLong(System.nanoTime());
+
+    private GlobalRateLimit() {}
+
+    /**
+     * The time until the global rate-limit is reset.
+     *
+     * @return The delay in milliseconds, zero or negative if there is no global rate-limit
+     */
+    static long retryAfter() {
+        final long nanos = resetTime.get() - System.nanoTime();
+        return nanos > 0 ? TimeUnit.NANOSECONDS.toMillis(nanos + 999_999) : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Whether all clients currently have to wait for the global rate-limit.
+     *
+     * @return True, if there is a global rate-limit
+     */
+    static boolean isRateLimit() {
+        return resetTime.get() - System.nanoTime() > 0;
+    }
+
+    /**
+     * Extends the global rate-limit by the provided delay.
+     * <br>Concurrent updates from multiple clients keep the latest reset.
+     *
+     * @param delay
+     *        The delay in milliseconds until the global rate-limit is over
+     */
+    static void update(long delay) {
+        final long reset = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        resetTime.accumulateAndGet(reset, (current, next) -> next - current > 0 ? next : current);
+    }
+}
@@ -19,6 +19,7 @@ package club.minnced.discord.webhook;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
+import okio.Buffer;
 import okio.BufferedSink;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -47,6 +48,26 @@ public class IOUtil { //TODO: test json
 
     private static final CompletableFuture[] EMPTY_FUTURES = new CompletableFuture[0];
 
+    /**
+     * Serializes a {@link okhttp3.RequestBody} into an immutable body backed by a single byte array.
+     * <br>The resulting body can be written any number of times and shared by any amount of requests,
+     * without serializing its content again.
+     *
+     * @param  body
+     *         The body to serialize
+     *
+     * @throws IOException
+     *         If the body cannot be written
+     *
+     * @return The serialized body
+     */
+    @NotNull
+    public static RequestBody serialize(@NotNull RequestBody body) throws IOException {
+        final Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        return RequestBody.create(body.contentType(), buffer.readByteArray());
+    }
+
     /**
      * Reads all bytes from an {@link java.io.InputStream}
      *
@@ -182,23 +203,59 @@ public class IOUtil { //TODO: test json
 
     /**
      * Wrapper for an {@link #OCTET} request body
+     * <br>The body can be written any number of times, which allows the same request to be retried or sent to multiple webhooks.
      */
     public static class OctetBody extends RequestBody {
-        private final InputStream in;
+        private InputStream in;
+        private volatile byte[] data;
 
+        /**
+         * Creates a body of the provided stream, which is read completely when the body is first written.
+         *
+         * @param in
+         *        The data
+         */
         public OctetBody(@NotNull InputStream in) {
             this.in = in;
         }
 
+        /**
+         * Creates a body of the provided bytes, the array is not copied.
+         *
+         * @param data
+         *        The data
+         */
+        public OctetBody(@NotNull byte[] data) {
+            this.data = data;
+        }
+
         @Override
         public MediaType contentType() {
             return OCTET;
         }
 
+        @Override
+        public long contentLength() {
+            final byte[] data = this.data;
+            return data == null ? -1 : data.length;
+        }
+
         @Override
         public void writeTo(BufferedSink sink) throws IOException {
-            byte[] data = readAllBytes(in);
-            sink.write(data);
+            sink.write(getData());
+        }
+
+        private byte[] getData() throws IOException {
+            byte[] data = this.data;
+            if (data != null)
+                return data;
+            synchronized (this) {
+                if (this.data == null) {
+                    this.data = readAllBytes(in);
+                    in = null;
+                }
+                return this.data;
+            }
         }
     }
 }
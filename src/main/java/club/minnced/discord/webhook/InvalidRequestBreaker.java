@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for invalid requests of all {@link WebhookClient} instances in this JVM.
+ * <br>Discord temporarily bans IPs which send {@value #INVALID_REQUEST_LIMIT} invalid requests within 10 minutes,
+ * which are responses with status 401, 403 or 429. 429 responses of a shared rate-limit scope do not count.
+ *
+ * <p>Invalid responses are counted in a sliding window. The breaker has three states:
+ * <ul>
+ *     <li>{@link State#CLOSED CLOSED} - All requests are sent</li>
+ *     <li>{@link State#THROTTLED THROTTLED} - Requests of clients whose last response was a 401 or 403 are shed,
+ *     their futures fail with a {@link java.util.concurrent.RejectedExecutionException RejectedExecutionException}.
+ *     Other clients keep sending.</li>
+ *     <li>{@link State#OPEN OPEN} - All clients defer their requests until enough invalid requests left the window</li>
+ * </ul>
+ */
+public final class InvalidRequestBreaker {
+    /** Amount of invalid requests within 10 minutes which leads to a ban */
+    public static final int INVALID_REQUEST_LIMIT = 10_000;
+
+    private static final Logger LOG = LoggerFactory.getLogger(InvalidRequestBreaker.class);
+    private static final int SLOTS = 60;
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(10);
+    private static final long SLOT_MILLIS = WINDOW / SLOTS;
+    private static final long START = System.nanoTime();
+
+    // invalid requests per slot of the window, with the slot each count belongs to
+    private static final int[] counts = new int[SLOTS];
+    private static final long[] slots = new long[SLOTS];
+    private static int throttleThreshold = INVALID_REQUEST_LIMIT / 2;
+    private static int openThreshold = INVALID_REQUEST_LIMIT * 9 / 10;
+    private static volatile State state = State.CLOSED;
+    private static volatile Listener listener;
+
+    private InvalidRequestBreaker() {}
+
+    /**
+     * Configures the thresholds of the breaker.
+     *
+     * <p>Default: throttled at 5000, open at 9000
+     *
+     * @param  throttleThreshold
+     *         The amount of invalid requests within the window at which requests to failing webhooks are shed
+     * @param  openThreshold
+     *         The amount of invalid requests within the window at which all requests are deferred
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the thresholds are not positive, or the open threshold is lower than the throttle threshold
+     */
+    public static void setThresholds(int throttleThreshold, int openThreshold) {
+        if (throttleThreshold < 1 || openThreshold < 1)
+            throw new IllegalArgumentException("Thresholds must be positive");
+        if (openThreshold < throttleThreshold)
+            throw new IllegalArgumentException("Open threshold may not be lower than throttle threshold");
+        synchronized (InvalidRequestBreaker.class) {
+            InvalidRequestBreaker.throttleThreshold = throttleThreshold;
+            InvalidRequestBreaker.openThreshold = openThreshold;
+        }
+        update(now());
+    }
+
+    /**
+     * Listener which is notified whenever the state of the breaker changes.
+     * <br>The listener is called on the thread which observed the change and should not block.
+     *
+     * @param listener
+     *        The listener, or null to remove the current listener
+     */
+    public static void setListener(@Nullable Listener listener) {
+        InvalidRequestBreaker.listener = listener;
+    }
+
+    /**
+     * The amount of invalid requests within the current window.
+     *
+     * @return The amount of invalid requests
+     */
+    public static synchronized int getInvalidRequests() {
+        return count(now());
+    }
+
+    /**
+     * The current state of the breaker.
+     *
+     * @return The {@link State}
+     */
+    @NotNull
+    public static State getState() {
+        // only an exceeded threshold can change without a new invalid request
+        return state == State.CLOSED ? State.CLOSED : update(now());
+    }
+
+    /**
+     * The time until enough invalid requests left the window for the breaker to leave the {@link State#OPEN OPEN} state.
+     *
+     * @return The delay in milliseconds, zero if the breaker is not open
+     */
+    public static synchronized long retryAfter() {
+        final long now = now();
+        int count = count(now);
+        if (count < openThreshold)
+            return 0;
+        final long current = now / SLOT_MILLIS;
+        // the oldest slots leave the window first
+        for (long slot = Math.max(0, current - SLOTS + 1); slot <= current; slot++) {
+            final int index = (int) (slot % SLOTS);
+            if (slots[index] == slot)
+                count -= counts[index];
+            if (count < openThreshold)
+                return (slot + SLOTS) * SLOT_MILLIS - now;
+        }
+        return WINDOW;
+    }
+
+    // Counts the response if it is an invalid request, returns true for 401 and 403
+    static boolean record(@NotNull Response response) {
+        final int code = response.code();
+        if (code == 429 && "shared".equalsIgnoreCase(response.header("X-RateLimit-Scope")))
+            return false;
+        if (code != 401 && code != 403 && code != 429)
+            return false;
+        final long now = now();
+        synchronized (InvalidRequestBreaker.class) {
+            final long slot = now / SLOT_MILLIS;
+            final int index = (int) (slot % SLOTS);
+            if (slots[index] != slot) {
+                slots[index] = slot;
+                counts[index] = 0;
+            }
+            counts[index]++;
+        }
+        update(now);
+        return code != 429;
+    }
+
+    private static State update(long now) {
+        final State previous, current;
+        synchronized (InvalidRequestBreaker.class) {
+            final int count = count(now);
+            previous = state;
+            if (count >= openThreshold)
+                current = State.OPEN;
+            else if (count >= throttleThreshold)
+                current = State.THROTTLED;
+            else
+                current = State.CLOSED;
+            state = current;
+        }
+        if (previous != current) {
+            final int count = getInvalidRequests();
+            if (current == State.CLOSED)
+                LOG.info("Invalid request breaker closed with {} invalid requests in the last 10 minutes", count);
+            else
+                LOG.warn("Invalid request breaker is {} with {} invalid requests in the last 10 minutes", current, count);
+            final Listener listener = InvalidRequestBreaker.listener;
+            if (listener != null) {
+                try {
+                    listener.onStateChange(previous, current, count);
+                }
+                catch (Throwable e) {
+                    LOG.error("Invalid request listener threw an exception", e);
+                }
+            }
+        }
+        return current;
+    }
+
+    private static int count(long now) {
+        final long current = now / SLOT_MILLIS;
+        int count = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            if (current - slots[i] < SLOTS)
+                count += counts[i];
+        }
+        return count;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - START);
+    }
+
+    /**
+     * State of the {@link InvalidRequestBreaker}.
+     */
+    public enum State {
+        /** Requests are sent normally */
+        CLOSED,
+        /** Requests of webhooks which responded with 401 or 403 are shed */
+        THROTTLED,
+        /** All requests are deferred */
+        OPEN
+    }
+
+    /**
+     * Listener for state changes of the {@link InvalidRequestBreaker}.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called when the state of the breaker changes.
+         *
+         * @param previous
+         *        The previous state
+         * @param current
+         *        The new state
+         * @param invalidRequests
+         *        The amount of invalid requests within the window
+         */
+        void onStateChange(@NotNull State previous, @NotNull State current, int invalidRequests);
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import club.minnced.discord.webhook.send.MessagePriority;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the queued requests of a {@link WebhookClient}.
+ * <br>Requests are written to memory-mapped segment files before they are queued and acknowledged once
+ * their future completes. Entries which were never acknowledged are replayed when the journal is opened again.
+ *
+ * <p>Segments are synced to disk in batches of {@value #SYNC_BATCH_SIZE} entries or whenever the client drains its queue.
+ * Segments which only contain acknowledged entries are deleted, oldest first.
+ */
+final class MessageJournal implements AutoCloseable {
+    /** Default size of a segment file */
+    static final int DEFAULT_SEGMENT_SIZE = 8 << 20;
+    /** Maximum amount of entries appended between two syncs */
+    static final int SYNC_BATCH_SIZE = 64;
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageJournal.class);
+    private static final String LOCK_FILE = "journal.lock";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8; // length and checksum
+    private static final byte KIND_MESSAGE = 1;
+    private static final byte KIND_ACK = 2;
+    private static final int ACK_SIZE = HEADER_SIZE + 1 + 8 + 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final FileChannel lockChannel;
+    // segments by the id of their first record, every record gets an increasing id
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 checksum = new CRC32();
+    private List<Entry> recovered;
+    private Segment active;
+    private long nextId;
+    private int unsynced;
+    private boolean closed;
+
+    private MessageJournal(File directory, int segmentSize, FileChannel lockChannel) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lockChannel = lockChannel;
+    }
+
+    /**
+     * Opens the journal in the provided directory and recovers all entries which were not acknowledged.
+     *
+     * @param  directory
+     *         The directory of the journal, must not be used by another client at the same time
+     * @param  segmentSize
+     *         The size of each segment file in bytes, larger entries get their own segment
+     *
+     * @throws IOException
+     *         If the journal cannot be read or the directory is already in use
+     *
+     * @return The journal, ready for appending
+     */
+    @NotNull
+    static MessageJournal open(@NotNull File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create journal directory " + directory);
+        final FileChannel lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            final FileLock lock = lockChannel.tryLock();
+            if (lock == null)
+                throw new IOException("Journal directory " + directory + " is used by another process");
+        }
+        catch (OverlappingFileLockException e) {
+            lockChannel.close();
+            throw new IOException("Journal directory " + directory + " is used by another client", e);
+        }
+        catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+
+        final MessageJournal journal = new MessageJournal(directory, segmentSize, lockChannel);
+        try {
+            journal.recover();
+        }
+        catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Encodes the provided request for this journal.
+     * <br>This can be done outside of the journal lock, the entry is only assigned its id once it is appended.
+     *
+     * @param  body
+     *         The request body, which is read once
+     * @param  priority
+     *         The priority lane of the request
+     * @param  timeToLive
+     *         The time to live in milliseconds, or 0
+     *
+     * @throws IOException
+     *         If the body cannot be read
+     *
+     * @return The encoded entry
+     */
+    @NotNull
+    static Entry encode(@NotNull RequestBody body, @NotNull MessagePriority priority, long timeToLive) throws IOException {
+        final Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        final MediaType type = body.contentType();
+        final long expiresAt = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0;
+        return new Entry(-1, priority, timeToLive, expiresAt, type, buffer.readByteArray());
+    }
+
+    /**
+     * Returns the entries recovered from a previous run, in the order they were appended.
+     * <br>The returned entries are handed over to the caller and not returned again.
+     *
+     * @return The recovered entries
+     */
+    @NotNull
+    synchronized List<Entry> takeRecovered() {
+        final List<Entry> entries = recovered;
+        recovered = Collections.emptyList();
+        return entries;
+    }
+
+    /**
+     * Appends the provided entry and assigns its id.
+     *
+     * @param  entry
+     *         The entry to append
+     *
+     * @throws IOException
+     *         If the entry could not be written
+     *
+     * @return The id used to acknowledge the entry
+     */
+    synchronized long append(@NotNull Entry entry) throws IOException {
+        checkOpen();
+        final byte[] type = entry.contentType == null ? new byte[0] : entry.contentType.toString().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + 8 + 1 + 8 + 8 + 2 + type.length + entry.body.length);
+        ensureCapacity(record.capacity());
+        final long id = nextId++;
+        record.position(HEADER_SIZE);
+        record.put(KIND_MESSAGE)
+              .putLong(id)
+              .put((byte) entry.priority.ordinal())
+              .putLong(entry.timeToLive)
+              .putLong(entry.expiresAt)
+              .putShort((short) type.length)
+              .put(type)
+              .put(entry.body);
+        write(record);
+        active.pending++;
+        if (++unsynced >= SYNC_BATCH_SIZE)
+            sync();
+        return id;
+    }
+
+    /**
+     * Acknowledges the entry with the provided id, it will not be replayed.
+     * <br>Acknowledgements are not synced on their own, after a crash a completed request may be replayed.
+     *
+     * @param id
+     *        The id returned by {@link #append(Entry)}
+     */
+    synchronized void ack(long id) {
+        if (closed)
+            return;
+        final Map.Entry<Long, Segment> owner = segments.floorEntry(id);
+        if (owner == null)
+            return;
+        try {
+            ensureCapacity(ACK_SIZE);
+            final ByteBuffer record = ByteBuffer.allocate(ACK_SIZE);
+            record.position(HEADER_SIZE);
+            record.put(KIND_ACK)
+                  .putLong(nextId++)
+                  .putLong(id);
+            write(record);
+        }
+        catch (IOException e) {
+            LOG.error("Could not acknowledge journal entry {}, it will be replayed", id, e);
+            return;
+        }
+        owner.getValue().pending--;
+        compact();
+    }
+
+    /**
+     * Forces all appended entries to disk.
+     */
+    synchronized void sync() {
+        if (active == null || unsynced == 0)
+            return;
+        active.buffer.force();
+        unsynced = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        sync();
+        closed = true;
+        // an active segment without pending entries is the last one left after compaction
+        if (active.pending == 0 && segments.size() == 1)
+            delete(active);
+        active = null;
+        try {
+            lockChannel.close();
+        }
+        catch (IOException e) {
+            LOG.error("Could not release journal lock", e);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Journal is closed");
+    }
+
+    private void ensureCapacity(int size) throws IOException {
+        if (active.buffer.remaining() >= size)
+            return;
+        // the rest of the segment stays zeroed, which marks its end
+        active.buffer.force();
+        active.buffer = null;
+        final Segment segment = new Segment(nextId, new File(directory, segmentName(nextId)));
+        segment.buffer = map(segment.file, Math.max(segmentSize, size));
+        segments.put(segment.id, segment);
+        active = segment;
+        unsynced = 0;
+        compact();
+    }
+
+    private void write(ByteBuffer record) {
+        final int length = record.position() - HEADER_SIZE;
+        checksum.reset();
+        checksum.update(record.array(), HEADER_SIZE, length);
+        record.putInt(0, length);
+        record.putInt(4, (int) checksum.getValue());
+        record.flip();
+        active.buffer.put(record);
+    }
+
+    // Deletes the oldest segments as long as all of their entries are acknowledged.
+    // Acknowledgements are always written after their entry, deleting in order never loses one which is still needed.
+    private void compact() {
+        Map.Entry<Long, Segment> first;
+        while ((first = segments.firstEntry()) != null) {
+            final Segment segment = first.getValue();
+            if (segment == active || segment.pending > 0)
+                break;
+            if (!delete(segment))
+                break;
+        }
+    }
+
+    private boolean delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.file.toPath());
+            segments.remove(segment.id);
+            LOG.trace("Deleted acknowledged journal segment {}", segment.file);
+            return true;
+        }
+        catch (IOException e) {
+            LOG.warn("Could not delete acknowledged journal segment {}", segment.file, e);
+            return false;
+        }
+    }
+
+    private void recover() throws IOException {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        final NavigableMap<Long, File> existing = new TreeMap<>();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                try {
+                    existing.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+                catch (NumberFormatException e) {
+                    LOG.warn("Ignoring unknown file {} in journal directory", file);
+                }
+            }
+        }
+
+        final Map<Long, Entry> pending = new LinkedHashMap<>();
+        for (Map.Entry<Long, File> file : existing.entrySet()) {
+            final Segment segment = new Segment(file.getKey(), file.getValue());
+            segments.put(segment.id, segment);
+            nextId = Math.max(nextId, segment.id);
+            read(segment, pending);
+        }
+        // recovered segments are never appended to, their tail might be torn
+        final Segment empty = segments.remove(nextId);
+        if (empty != null) // crashed before writing the first record
+            Files.deleteIfExists(empty.file.toPath());
+        active = new Segment(nextId, new File(directory, segmentName(nextId)));
+        active.buffer = map(active.file, segmentSize);
+        segments.put(active.id, active);
+        recovered = new ArrayList<>(pending.values());
+        if (!recovered.isEmpty())
+            LOG.info("Recovered {} unacknowledged requests from journal {}", recovered.size(), directory);
+        compact();
+    }
+
+    private void read(Segment segment, Map<Long, Entry> pending) throws IOException {
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            final int expected = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining())
+                break;
+            final byte[] data = new byte[length];
+            buffer.get(data);
+            checksum.reset();
+            checksum.update(data, 0, length);
+            if ((int) checksum.getValue() != expected) {
+                LOG.warn("Found torn record at offset {} of journal segment {}, ignoring the rest", start, segment.file);
+                break;
+            }
+            final ByteBuffer record = ByteBuffer.wrap(data);
+            final byte kind = record.get();
+            final long id = record.getLong();
+            nextId = Math.max(nextId, id + 1);
+            if (kind == KIND_ACK) {
+                final long target = record.getLong();
+                if (pending.remove(target) != null) {
+                    final Map.Entry<Long, Segment> owner = segments.floorEntry(target);
+                    if (owner != null)
+                        owner.getValue().pending--;
+                }
+            }
+            else if (kind == KIND_MESSAGE) {
+                final int ordinal = record.get();
+                final MessagePriority[] priorities = MessagePriority.values();
+                final MessagePriority priority = ordinal >= 0 && ordinal < priorities.length ? priorities[ordinal] : MessagePriority.NORMAL;
+                final long timeToLive = record.getLong();
+                final long expiresAt = record.getLong();
+                final byte[] type = new byte[record.getShort()];
+                record.get(type);
+                final byte[] body = new byte[record.remaining()];
+                record.get(body);
+                pending.put(id, new Entry(id, priority, timeToLive, expiresAt, MediaType.parse(new String(type, StandardCharsets.UTF_8)), body));
+                segment.pending++;
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static String segmentName(long id) {
+        return String.format("%020d%s", id, SEGMENT_SUFFIX);
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final File file;
+        private MappedByteBuffer buffer; // only mapped while active
+        private int pending;
+
+        private Segment(long id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    /**
+     * A journaled request.
+     */
+    static final class Entry {
+        private final long id;
+        final MessagePriority priority;
+        final long timeToLive;
+        final long expiresAt; // epoch milliseconds, 0 if the request does not expire
+        private final MediaType contentType;
+        private final byte[] body;
+
+        private Entry(long id, MessagePriority priority, long timeToLive, long expiresAt, @Nullable MediaType contentType, byte[] body) {
+            this.id = id;
+            this.priority = priority;
+            this.timeToLive = timeToLive;
+            this.expiresAt = expiresAt;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        /**
+         * The journaled body, which can be written any amount of times
+         *
+         * @return The request body
+         */
+        @NotNull
+        RequestBody getBody() {
+            return RequestBody.create(contentType, body);
+        }
+    }
+}
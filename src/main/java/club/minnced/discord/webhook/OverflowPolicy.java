@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+/**
+ * Behavior of a {@link club.minnced.discord.webhook.WebhookClient} when a new request
+ * is sent while its queue is at full capacity.
+ *
+ * @see club.minnced.discord.webhook.WebhookClientBuilder#setQueueCapacity(int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+    /**
+     * The sending thread is blocked until capacity is available.
+     * <br>Sending from a callback of a previous request on the same client can deadlock with this policy.
+     */
+    BLOCK,
+    /**
+     * The send method throws a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    REJECT,
+    /**
+     * The oldest queued request is dropped in favor of the new request.
+     * <br>Requests of the lowest {@link club.minnced.discord.webhook.send.MessagePriority priority} are dropped first,
+     * a request of higher priority than the new request is never dropped.
+     */
+    DROP_OLDEST,
+    /**
+     * The new request is dropped.
+     */
+    DROP_NEWEST
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rate-limit state shared by all processes on the same host through a memory-mapped file.
+ * <br>Every bucket occupies a slot in a fixed table. Its remaining uses, limit and reset time are packed
+ * into a single word, which is updated with compare-and-swap on the mapped memory.
+ * This lets co-located processes draw from the same pool of requests without locks or an external service.
+ *
+ * <p>The table is sized for an expected amount of webhooks by the process which creates the file,
+ * every webhook takes one slot until its bucket hash is known and one for the bucket.
+ * Once the table is full, slots of buckets which have been reset and unused for a full window are reclaimed.
+ *
+ * <p>Reset times are stored in epoch milliseconds, since the monotonic clock of a JVM is not shared with other processes.
+ *
+ * <h2>Layout</h2>
+ * <pre>
+ * header (64 bytes): magic, base epoch millis, global reset epoch millis, slot count
+ * slot   (32 bytes): key hash, state, window millis, last use epoch millis
+ * state  (64 bits):  reset millis since base (40) | remaining (12) | limit (12)
+ * </pre>
+ */
+final class RateLimitFile {
+    /** Amount of webhooks a file is sized for by default */
+    static final int DEFAULT_CAPACITY = 2048;
+    /** Largest amount of webhooks a file can be sized for */
+    static final int MAX_CAPACITY = 1 << 20;
+
+    private static final Logger LOG = LoggerFactory.getLogger(RateLimitFile.class);
+    private static final long MAGIC = 0x4457_524C_0000_0001L; // "DWRL" version 1
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final int MAGIC_OFFSET = 0, BASE_OFFSET = 8, GLOBAL_OFFSET = 16, SLOTS_OFFSET = 24;
+    private static final int KEY_OFFSET = 0, STATE_OFFSET = 8, WINDOW_OFFSET = 16, LAST_USE_OFFSET = 24;
+    private static final int FIELD_BITS = 12;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+    private static final long MAX_RESET = (1L << 40) - 1;
+    // resets of two responses further apart than this belong to different windows
+    private static final long WINDOW_TOLERANCE = 100;
+    private static final long DEFAULT_WINDOW = 1000;
+
+    private static final Map<String, RateLimitFile> OPEN = new ConcurrentHashMap<>();
+    private static final MethodHandle COMPARE_AND_SWAP, GET_VOLATILE, PUT_VOLATILE;
+    private static final long ADDRESS_OFFSET;
+    private static final Throwable UNSUPPORTED;
+
+    static {
+        MethodHandle cas = null, get = null, put = null;
+        long addressOffset = 0;
+        Throwable unsupported = null;
+        try {
+            final Class<?> type = Class.forName("sun.misc.Unsafe");
+            final Field instance = type.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            final Object unsafe = instance.get(null);
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            cas = lookup.unreflect(type.getMethod("compareAndSwapLong", Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+            get = lookup.unreflect(type.getMethod("getLongVolatile", Object.class, long.class)).bindTo(unsafe);
+            put = lookup.unreflect(type.getMethod("putLongVolatile", Object.class, long.class, long.class)).bindTo(unsafe);
+            final MethodHandle fieldOffset = lookup.unreflect(type.getMethod("objectFieldOffset", Field.class)).bindTo(unsafe);
+            addressOffset = (long) fieldOffset.invoke(Buffer.class.getDeclaredField("address"));
+        }
+        catch (Throwable e) {
+            unsupported = e;
+        }
+        COMPARE_AND_SWAP = cas;
+        GET_VOLATILE = get;
+        PUT_VOLATILE = put;
+        ADDRESS_OFFSET = addressOffset;
+        UNSUPPORTED = unsupported;
+    }
+
+    private final File file;
+    // keeps the mapping alive, all access goes through its address
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final long base;
+    private final int slots;
+    private final Map<String, WebhookClient.Bucket> buckets = new ConcurrentHashMap<>();
+
+    private RateLimitFile(File file, MappedByteBuffer buffer, long address, int slots) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        this.address = address;
+        this.slots = slots;
+        if (!compareAndSwap(MAGIC_OFFSET, 0, MAGIC) && get(MAGIC_OFFSET) != MAGIC)
+            throw new IOException("File " + file + " is not a rate-limit file");
+        compareAndSwap(BASE_OFFSET, 0, System.currentTimeMillis());
+        this.base = get(BASE_OFFSET);
+    }
+
+    /**
+     * Opens the provided rate-limit file, which is created if it does not exist yet.
+     * <br>All clients of this JVM using the same file share one mapping.
+     * The capacity only applies to a new file, an existing file keeps the size it was created with.
+     *
+     * @param  file
+     *         The file to map
+     * @param  capacity
+     *         The amount of webhooks the file is sized for
+     *
+     * @throws IOException
+     *         If the file cannot be mapped or is not a rate-limit file
+     * @throws UnsupportedOperationException
+     *         If the runtime does not support atomic operations on mapped memory
+     *
+     * @return The opened file
+     */
+    @NotNull
+    static RateLimitFile open(@NotNull File file, int capacity) throws IOException {
+        if (UNSUPPORTED != null)
+            throw new UnsupportedOperationException("Shared rate-limit files are not supported by this runtime", UNSUPPORTED);
+        final String path = file.getCanonicalPath();
+        final RateLimitFile existing = OPEN.get(path);
+        if (existing != null)
+            return existing;
+        synchronized (OPEN) {
+            RateLimitFile opened = OPEN.get(path);
+            if (opened == null) {
+                opened = map(file, tableSize(capacity));
+                OPEN.put(path, opened);
+            }
+            return opened;
+        }
+    }
+
+    // Two slots per webhook, at most half of the table is used before the probe sequences get long
+    static int tableSize(int capacity) {
+        return Integer.highestOneBit(Math.max(1, capacity * 4 - 1)) << 1;
+    }
+
+    private static RateLimitFile map(File file, int slots) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the process which creates the file decides the size of the table
+            final ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            if (channel.read(header, SLOTS_OFFSET) == header.capacity() && header.getLong(0) > 0)
+                slots = (int) header.getLong(0);
+            while (true) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+                final long address;
+                try {
+                    address = (long) GET_VOLATILE.invoke((Object) buffer, ADDRESS_OFFSET);
+                }
+                catch (Throwable e) {
+                    throw new UnsupportedOperationException("Cannot access mapped memory", e);
+                }
+                final RateLimitFile mapped = new RateLimitFile(file, buffer, address, slots);
+                if (mapped.compareAndSwap(SLOTS_OFFSET, 0, slots))
+                    return mapped;
+                final long actual = mapped.get(SLOTS_OFFSET);
+                if (actual == slots)
+                    return mapped;
+                if (actual <= 0 || Long.bitCount(actual) != 1 || actual > tableSize(MAX_CAPACITY))
+                    throw new IOException("File " + file + " has an invalid slot count " + actual);
+                // another process created the file at the same time
+                slots = (int) actual;
+            }
+        }
+    }
+
+    /**
+     * The bucket for the provided key, shared with all processes using this file.
+     * <br>If the file has no free slot left, the bucket is only shared within this JVM.
+     *
+     * @param  key
+     *         The bucket key
+     *
+     * @return The bucket
+     */
+    @NotNull
+    WebhookClient.Bucket bucket(@NotNull String key) {
+        return buckets.computeIfAbsent(key, k -> new WebhookClient.Bucket(k, slot(k)));
+    }
+
+    /**
+     * Pauses all buckets of this file until the global rate-limit is over.
+     *
+     * @param delay
+     *        The delay in milliseconds
+     */
+    void pauseGlobal(long delay) {
+        final long reset = System.currentTimeMillis() + delay;
+        long current;
+        do {
+            current = get(GLOBAL_OFFSET);
+        } while (current < reset && !compareAndSwap(GLOBAL_OFFSET, current, reset));
+    }
+
+    long globalRetryAfter(long now) {
+        return get(GLOBAL_OFFSET) - now;
+    }
+
+    // The slot of the bucket, null if the table is full
+    @Nullable
+    Slot slot(@NotNull String key) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        if (hash == 0)
+            hash = 1; // zero marks a free slot
+        final long offset = locate(hash);
+        if (offset >= 0)
+            return new Slot(key, hash, offset);
+        LOG.warn("Rate-limit file {} is full, bucket {} is not shared with other processes", file, key);
+        return null;
+    }
+
+    // Finds or claims the slot of a key, -1 if the table is full
+    private long locate(long hash) {
+        final int start = (int) (hash & (slots - 1));
+        while (true) {
+            final long now = System.currentTimeMillis();
+            long free = -1, idle = -1;
+            for (int i = 0; i < slots; i++) {
+                final long offset = HEADER_SIZE + (long) ((start + i) & (slots - 1)) * SLOT_SIZE;
+                final long current = get(offset + KEY_OFFSET);
+                if (current == hash)
+                    return offset;
+                if (current == 0) {
+                    // slots are never freed, the key cannot follow a free slot
+                    free = offset;
+                    break;
+                }
+                if (idle < 0 && isIdle(offset, now))
+                    idle = offset;
+            }
+            if (free >= 0) {
+                if (compareAndSwap(free + KEY_OFFSET, 0, hash)) {
+                    put(free + LAST_USE_OFFSET, now);
+                    return free;
+                }
+                continue; // claimed by another process, it might have been the same key
+            }
+            if (idle < 0)
+                return -1;
+            final long previous = get(idle + KEY_OFFSET);
+            if (isIdle(idle, now) && compareAndSwap(idle + KEY_OFFSET, previous, hash)) {
+                // the previous bucket is over, the slot starts without state
+                put(idle + STATE_OFFSET, 0);
+                put(idle + WINDOW_OFFSET, 0);
+                put(idle + LAST_USE_OFFSET, now);
+                LOG.debug("Reclaimed idle slot of rate-limit file {}", file);
+                return idle;
+            }
+        }
+    }
+
+    // A slot is idle once its bucket has been reset and unused for a full window
+    private boolean isIdle(long offset, long now) {
+        final long window = Math.max(DEFAULT_WINDOW, get(offset + WINDOW_OFFSET));
+        final long lastUse = Math.max(reset(get(offset + STATE_OFFSET)), get(offset + LAST_USE_OFFSET));
+        return now - lastUse >= window;
+    }
+
+    private long reset(long state) {
+        return base + (state >>> (2 * FIELD_BITS));
+    }
+
+    private long get(long offset) {
+        try {
+            return (long) GET_VOLATILE.invokeExact((Object) null, address + offset);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void put(long offset, long value) {
+        try {
+            PUT_VOLATILE.invokeExact((Object) null, address + offset, value);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean compareAndSwap(long offset, long expected, long value) {
+        try {
+            return (boolean) COMPARE_AND_SWAP.invokeExact((Object) null, address + offset, expected, value);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Lock-free view of the state of one bucket in the file.
+     * <br>If the slot was reclaimed for another bucket, the bucket moves to a new slot.
+     * Without a free slot, it behaves like a bucket without a response until one is available.
+     */
+    final class Slot {
+        private final String key;
+        private final long hash;
+        private volatile long offset;
+        // the next time a slot is searched while the table is full
+        private volatile long relocateTime;
+
+        private Slot(String key, long hash, long offset) {
+            this.key = key;
+            this.hash = hash;
+            this.offset = offset;
+        }
+
+        // The current offset of this bucket, -1 if the table is full
+        private long offset() {
+            final long current = offset;
+            if (current >= 0 && get(current + KEY_OFFSET) == hash)
+                return current;
+            final long now = System.currentTimeMillis();
+            if (current < 0 && now < relocateTime)
+                return -1;
+            // the slot was reclaimed by another bucket
+            final long relocated = locate(hash);
+            if (relocated < 0) {
+                if (current >= 0)
+                    LOG.warn("Rate-limit file {} is full, bucket {} is not shared with other processes until a slot is free", file, key);
+                relocateTime = now + DEFAULT_WINDOW;
+            }
+            offset = relocated;
+            return relocated;
+        }
+
+        /**
+         * Takes one request from the bucket, unless it is exhausted.
+         *
+         * @return True, if a request may be sent
+         */
+        boolean tryAcquire() {
+            final long now = System.currentTimeMillis();
+            if (globalRetryAfter(now) > 0)
+                return false;
+            final long offset = offset();
+            if (offset < 0)
+                return true;
+            put(offset + LAST_USE_OFFSET, now);
+            while (true) {
+                final long state = get(offset + STATE_OFFSET);
+                final int limit = limit(state);
+                if (limit == 0) // not known before the first response
+                    return true;
+                long reset = reset(state);
+                int remaining = remaining(state);
+                if (reset <= now) {
+                    // start the next window until a response reports its actual reset
+                    final long window = get(offset + WINDOW_OFFSET);
+                    reset = now + (window > 0 ? window : DEFAULT_WINDOW);
+                    remaining = limit;
+                }
+                if (remaining <= 0)
+                    return false;
+                if (compareAndSwap(offset + STATE_OFFSET, state, pack(reset, remaining - 1, limit)))
+                    return true;
+            }
+        }
+
+        /**
+         * Gives back a request taken by {@link #tryAcquire()} which never reached discord.
+         * <br>Requests of a window which is already over are not given back.
+         */
+        void release() {
+            final long now = System.currentTimeMillis();
+            final long offset = offset();
+            if (offset < 0)
+                return;
+            while (true) {
+                final long state = get(offset + STATE_OFFSET);
+                final int limit = limit(state);
+                final int remaining = remaining(state);
+                if (limit == 0 || reset(state) <= now || remaining >= limit)
+                    return;
+                if (compareAndSwap(offset + STATE_OFFSET, state, pack(reset(state), remaining + 1, limit)))
+                    return;
+            }
+        }
+
+        /**
+         * The remaining requests of the current window.
+         *
+         * @return The remaining requests, or {@link Integer#MAX_VALUE} if the limit is not known yet
+         */
+        int remaining() {
+            final long now = System.currentTimeMillis();
+            if (globalRetryAfter(now) > 0)
+                return 0;
+            final long offset = offset();
+            if (offset < 0)
+                return Integer.MAX_VALUE;
+            final long state = get(offset + STATE_OFFSET);
+            if (limit(state) == 0)
+                return Integer.MAX_VALUE;
+            return reset(state) <= now ? limit(state) : remaining(state);
+        }
+
+        /**
+         * The time until a request can be sent.
+         *
+         * @return The delay in milliseconds, zero or negative if a request can be sent right away
+         */
+        long retryAfter() {
+            final long now = System.currentTimeMillis();
+            final long offset = offset();
+            if (offset < 0)
+                return globalRetryAfter(now);
+            final long state = get(offset + STATE_OFFSET);
+            final long bucket = limit(state) == 0 || remaining(state) > 0 ? 0 : reset(state) - now;
+            return Math.max(bucket, globalRetryAfter(now));
+        }
+
+        /**
+         * Applies the rate-limit headers of a successful response.
+         * <br>Within the same window, the lower amount of remaining requests is kept,
+         * since other processes may have taken requests that are not reflected by this response yet.
+         *
+         * @param remaining
+         *        The remaining requests reported by discord
+         * @param limit
+         *        The limit reported by discord
+         * @param resetAfter
+         *        The time until the window is reset in milliseconds
+         */
+        void update(int remaining, int limit, long resetAfter) {
+            final long now = System.currentTimeMillis();
+            final long offset = offset();
+            if (offset < 0)
+                return;
+            final long reset = now + resetAfter;
+            put(offset + LAST_USE_OFFSET, now);
+            if (remaining == limit - 1) // first request of a window
+                put(offset + WINDOW_OFFSET, Math.max(1, resetAfter));
+            while (true) {
+                final long state = get(offset + STATE_OFFSET);
+                int next = remaining;
+                final long current = reset(state);
+                if (limit(state) != 0 && current > now && reset - current <= WINDOW_TOLERANCE)
+                    next = Math.min(remaining(state), remaining);
+                if (compareAndSwap(offset + STATE_OFFSET, state, pack(reset, next, limit)))
+                    return;
+            }
+        }
+
+        /**
+         * Exhausts the bucket after a 429 response.
+         *
+         * @param delay
+         *        The time until requests can be sent again in milliseconds
+         */
+        void rateLimit(long delay) {
+            final long now = System.currentTimeMillis();
+            final long offset = offset();
+            if (offset < 0)
+                return;
+            final long reset = now + delay;
+            put(offset + LAST_USE_OFFSET, now);
+            while (true) {
+                final long state = get(offset + STATE_OFFSET);
+                final int limit = limit(state) == 0 ? 1 : limit(state);
+                if (compareAndSwap(offset + STATE_OFFSET, state, pack(Math.max(reset, reset(state)), 0, limit)))
+                    return;
+            }
+        }
+
+        void pauseGlobal(long delay) {
+            RateLimitFile.this.pauseGlobal(delay);
+        }
+
+        private long pack(long reset, int remaining, int limit) {
+            final long relative = Math.min(MAX_RESET, Math.max(0, reset - base));
+            return relative << (2 * FIELD_BITS)
+                 | (Math.min(remaining, FIELD_MASK) & FIELD_MASK) << FIELD_BITS
+                 | Math.min(limit, FIELD_MASK) & FIELD_MASK;
+        }
+
+        private int remaining(long state) {
+            return (int) (state >>> FIELD_BITS & FIELD_MASK);
+        }
+
+        private int limit(long state) {
+            return (int) (state & FIELD_MASK);
+        }
+    }
+}
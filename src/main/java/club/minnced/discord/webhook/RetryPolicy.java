@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Policy of a {@link club.minnced.discord.webhook.WebhookClient} for requests which failed due to an I/O error
+ * or a retryable http status.
+ * <br>A failed request is kept at the head of the queue and sent again after an exponential backoff,
+ * which keeps the order of messages intact when requests are sent sequentially.
+ * Rate-limits (429) are always retried and do not count as attempts.
+ *
+ * <p>The delay of the n-th retry is {@code min(maxDelay, baseDelay * 2^(n-1))}, reduced by a random fraction of up to
+ * {@link #getJitter() jitter} to spread the retries of many clients.
+ *
+ * @see club.minnced.discord.webhook.WebhookClientBuilder#setRetryPolicy(RetryPolicy)
+ */
+public final class RetryPolicy {
+    /** Failed requests are not retried */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0, new int[0]);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double jitter;
+    private final int[] retryableCodes;
+
+    private RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, double jitter, int[] retryableCodes) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+        this.retryableCodes = retryableCodes;
+    }
+
+    /**
+     * Creates a policy with exponential backoff.
+     * <br>By default, the delay has a jitter of {@code 0.5} and the status codes 500, 502, 503 and 504 are retried.
+     *
+     * @param  maxAttempts
+     *         The maximum amount of attempts for each request, including the first
+     * @param  baseDelay
+     *         The delay before the first retry
+     * @param  maxDelay
+     *         The maximum delay between two attempts
+     * @param  unit
+     *         The unit of the delays
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the attempts are not positive, a delay is negative, or the base delay exceeds the maximum delay
+     * @throws java.lang.NullPointerException
+     *         If the unit is null
+     *
+     * @return The retry policy
+     */
+    @NotNull
+    public static RetryPolicy exponential(int maxAttempts, long baseDelay, long maxDelay, @NotNull TimeUnit unit) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Max attempts must be positive");
+        if (baseDelay < 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException("Delays may not be negative and the base delay may not exceed the max delay");
+        return new RetryPolicy(maxAttempts, unit.toMillis(baseDelay), unit.toMillis(maxDelay), 0.5, new int[]{500, 502, 503, 504});
+    }
+
+    /**
+     * Creates a copy of this policy with the provided jitter.
+     *
+     * @param  jitter
+     *         The maximum fraction of the delay that is randomly removed, between 0 and 1
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the jitter is not between 0 and 1
+     *
+     * @return The new retry policy
+     */
+    @NotNull
+    public RetryPolicy withJitter(double jitter) {
+        if (!(jitter >= 0 && jitter <= 1))
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+        return new RetryPolicy(maxAttempts, baseDelay, maxDelay, jitter, retryableCodes);
+    }
+
+    /**
+     * Creates a copy of this policy which retries the provided http status codes.
+     * <br>I/O errors are always retried.
+     *
+     * @param  codes
+     *         The retryable status codes
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If a code is not an error code of 400 or above, or 429 which is handled by the rate-limiter
+     *
+     * @return The new retry policy
+     */
+    @NotNull
+    public RetryPolicy withRetryableCodes(@NotNull int... codes) {
+        final int[] sorted = codes.clone();
+        for (int code : sorted) {
+            if (code < 400 || code > 599 || code == WebhookClient.Bucket.RATE_LIMIT_CODE)
+                throw new IllegalArgumentException("Invalid retryable status code: " + code);
+        }
+        Arrays.sort(sorted);
+        return new RetryPolicy(maxAttempts, baseDelay, maxDelay, jitter, sorted);
+    }
+
+    /**
+     * The maximum amount of attempts for each request, including the first.
+     *
+     * @return The maximum attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * The delay before the first retry.
+     *
+     * @return The delay in milliseconds
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * The maximum delay between two attempts.
+     *
+     * @return The delay in milliseconds
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * The maximum fraction of the delay that is randomly removed.
+     *
+     * @return The jitter, between 0 and 1
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Whether a response with the provided http status code is retried.
+     *
+     * @param  code
+     *         The status code
+     *
+     * @return True, if the code is retryable
+     */
+    public boolean isRetryable(int code) {
+        return Arrays.binarySearch(retryableCodes, code) >= 0;
+    }
+
+    /**
+     * The delay before the provided attempt.
+     *
+     * @param  attempt
+     *         The attempt which failed, starting at 1
+     *
+     * @return The delay in milliseconds
+     */
+    public long getDelay(int attempt) {
+        long delay = baseDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++)
+            delay = delay > maxDelay / 2 ? maxDelay : delay * 2;
+        if (jitter == 0 || delay == 0)
+            return delay;
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+}
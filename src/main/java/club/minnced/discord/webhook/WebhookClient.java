@@ -17,17 +17,23 @@
 package club.minnced.discord.webhook;
 
 import club.minnced.discord.webhook.exception.HttpException;
+import club.minnced.discord.webhook.exception.MessageDroppedException;
+import club.minnced.discord.webhook.exception.MessageExpiredException;
 import club.minnced.discord.webhook.receive.EntityFactory;
 import club.minnced.discord.webhook.receive.ReadonlyMessage;
 import club.minnced.discord.webhook.send.AllowedMentions;
+import club.minnced.discord.webhook.send.MessagePriority;
 import club.minnced.discord.webhook.send.WebhookEmbed;
 import club.minnced.discord.webhook.send.WebhookMessage;
 import club.minnced.discord.webhook.send.WebhookMessageBuilder;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import org.jetbrains.annotations.Async;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -40,9 +46,17 @@ import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import java.util.regex.Matcher;
 
 /**
@@ -50,24 +64,53 @@ import java.util.regex.Matcher;
  * representing the execution. If provided with {@code null} an {@link java.lang.NullPointerException} is thrown instead.
  */
 public class WebhookClient implements AutoCloseable {
+    /**
+     * Base url of the discord api
+     */
+    public static final String BASE_URL = "https://discord.com/api/v" + LibraryInfo.DISCORD_API_VERSION;
     /**
      * Format for webhook execution endpoint
      */
-    public static final String WEBHOOK_URL = "https://discord.com/api/v" + LibraryInfo.DISCORD_API_VERSION + "/webhooks/%s/%s?wait=%s";
+    public static final String WEBHOOK_URL = BASE_URL + "/webhooks/%s/%s?wait=%s";
     /** User-Agent used for REST requests */
     public static final String USER_AGENT = "Webhook(https://github.com/MinnDevelopment/discord-webhooks, " + LibraryInfo.VERSION + ")";
+    /** Maximum amount of requests executed per drain before yielding the thread to other clients of a shared executor */
+    protected static final int DRAIN_BATCH_SIZE = 5;
     private static final Logger LOG = LoggerFactory.getLogger(WebhookClient.class);
 
-    protected final String url;
+    // replaced by the builder if the base url is overridden
+    protected String url;
     protected final long id;
     protected final OkHttpClient client;
     protected final ScheduledExecutorService pool;
-    protected final Bucket bucket;
-    protected final BlockingQueue<Request> queue;
+    // replaced by a shared bucket once discord reports the bucket hash
+    protected volatile Bucket bucket;
+    protected final RequestQueue queue;
     protected final boolean parseMessage;
     protected final AllowedMentions allowedMentions;
-    protected volatile boolean isQueued;
-    protected boolean isShutdown;
+    protected final AtomicLong droppedCount = new AtomicLong();
+    protected final AtomicLong expiredCount = new AtomicLong();
+    protected final AtomicInteger inFlight = new AtomicInteger();
+    // queued or in flight, until the future is completed
+    protected final AtomicInteger pending = new AtomicInteger();
+    // whoever flips this flag owns the drain, which makes it the only consumer of the queue
+    protected final AtomicBoolean isQueued = new AtomicBoolean();
+    private final AtomicBoolean isTerminated = new AtomicBoolean();
+    protected volatile boolean isShutdown;
+    // the last response was a 401 or 403, requests are shed while the invalid request breaker is throttled
+    protected volatile boolean isFailing;
+    protected boolean isAsyncDispatch;
+    protected boolean isCoalescing;
+    protected boolean isPacing;
+    protected int maxInFlight = 1;
+    protected Semaphore queuePermits;
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    protected MessageJournal journal;
+    protected RateLimitFile rateLimitFile;
+    protected File bucketSnapshot;
+    protected RetryPolicy retryPolicy = RetryPolicy.NONE;
+    // System.nanoTime() before which the request at the head of the queue is not retried
+    private volatile long retryTime = System.nanoTime();
 
     protected WebhookClient(
             final long id, final String token, final boolean parseMessage,
@@ -78,9 +121,8 @@ public class WebhookClient implements AutoCloseable {
         this.url = String.format(WEBHOOK_URL, Long.toUnsignedString(id), token, parseMessage);
         this.pool = pool;
         this.bucket = new Bucket();
-        this.queue = new LinkedBlockingQueue<>();
+        this.queue = new RequestQueue();
         this.allowedMentions = mentions;
-        this.isQueued = false;
     }
 
     /**
@@ -154,6 +196,97 @@ public class WebhookClient implements AutoCloseable {
         return parseMessage;
     }
 
+    /**
+     * Whether requests are dispatched through asynchronous http calls.
+     * <br>When enabled, no thread is blocked for the network round-trip of a request.
+     *
+     * @return True, if requests are dispatched asynchronously
+     *
+     * @see    club.minnced.discord.webhook.WebhookClientBuilder#setAsyncDispatch(boolean)
+     */
+    public boolean isAsyncDispatch() {
+        return isAsyncDispatch;
+    }
+
+    /**
+     * Whether adjacent queued messages are merged into a single request.
+     *
+     * @return True, if messages are coalesced
+     *
+     * @see    club.minnced.discord.webhook.WebhookClientBuilder#setCoalescing(boolean)
+     */
+    public boolean isCoalescing() {
+        return isCoalescing;
+    }
+
+    /**
+     * Whether requests are spread evenly across the rate-limit window.
+     *
+     * @return True, if requests are paced
+     *
+     * @see    club.minnced.discord.webhook.WebhookClientBuilder#setPacing(boolean)
+     */
+    public boolean isPacing() {
+        return isPacing;
+    }
+
+    /**
+     * The policy for requests which failed due to an I/O error or a retryable http status.
+     *
+     * @return The {@link RetryPolicy}
+     *
+     * @see    club.minnced.discord.webhook.WebhookClientBuilder#setRetryPolicy(RetryPolicy)
+     */
+    @NotNull
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * The maximum amount of requests this client keeps in flight at once.
+     * <br>The actual amount is further limited by the remaining uses of the current rate-limit bucket.
+     *
+     * @return The maximum amount of concurrent requests, {@code 1} if requests are strictly sequential
+     *
+     * @see    club.minnced.discord.webhook.WebhookClientBuilder#setPipelining(int)
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * The amount of requests which are queued or in flight.
+     *
+     * @return The amount of pending requests
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * The amount of requests that were dropped due to the {@link OverflowPolicy} of this client.
+     * <br>The futures of dropped requests are completed with a {@link club.minnced.discord.webhook.exception.MessageDroppedException}.
+     *
+     * @return The amount of dropped requests
+     *
+     * @see    club.minnced.discord.webhook.WebhookClientBuilder#setQueueCapacity(int, OverflowPolicy)
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * The amount of requests that expired in the queue of this client before they could be sent.
+     * <br>The futures of expired requests are completed with a {@link club.minnced.discord.webhook.exception.MessageExpiredException}.
+     *
+     * @return The amount of expired requests
+     *
+     * @see    club.minnced.discord.webhook.send.WebhookMessageBuilder#setTimeToLive(long, TimeUnit)
+     */
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
     /**
      * Whether this client has been shutdown.
      *
@@ -181,7 +314,30 @@ public class WebhookClient implements AutoCloseable {
     @NotNull
     public CompletableFuture<ReadonlyMessage> send(@NotNull WebhookMessage message) {
         Objects.requireNonNull(message, "WebhookMessage");
-        return execute(message.getBody());
+        final MessagePriority priority = message.getPriority();
+        return send(message, priority == null ? MessagePriority.NORMAL : priority);
+    }
+
+    /**
+     * Sends the provided {@link club.minnced.discord.webhook.send.WebhookMessage}
+     * to the webhook, using the provided priority instead of {@link WebhookMessage#getPriority()}.
+     * <br>Queued messages with a higher priority are sent first.
+     *
+     * @param  message
+     *         The message to send
+     * @param  priority
+     *         The {@link MessagePriority} to queue the message with
+     *
+     * @return {@link java.util.concurrent.CompletableFuture}
+     *
+     * @see    #isWait()
+     * @see    #send(club.minnced.discord.webhook.send.WebhookMessage)
+     */
+    @NotNull
+    public CompletableFuture<ReadonlyMessage> send(@NotNull WebhookMessage message, @NotNull MessagePriority priority) {
+        Objects.requireNonNull(message, "WebhookMessage");
+        Objects.requireNonNull(priority, "Priority");
+        return execute(message.getBody(), message, priority);
     }
 
     /**
@@ -325,13 +481,36 @@ public class WebhookClient implements AutoCloseable {
      */
     @NotNull
     public CompletableFuture<ReadonlyMessage> send(@NotNull String content) {
+        return send(content, MessagePriority.NORMAL);
+    }
+
+    /**
+     * Sends the provided content as normal message to the webhook, using the provided priority.
+     * <br>Queued messages with a higher priority are sent first.
+     *
+     * @param  content
+     *         The content to send
+     * @param  priority
+     *         The {@link MessagePriority} to queue the message with
+     *
+     * @return {@link java.util.concurrent.CompletableFuture}
+     *
+     * @see    #isWait()
+     * @see    #send(String)
+     */
+    @NotNull
+    public CompletableFuture<ReadonlyMessage> send(@NotNull String content, @NotNull MessagePriority priority) {
         Objects.requireNonNull(content, "Content");
+        Objects.requireNonNull(priority, "Priority");
         content = content.trim();
         if (content.isEmpty())
             throw new IllegalArgumentException("Cannot send an empty message");
         if (content.length() > 2000)
             throw new IllegalArgumentException("Content may not exceed 2000 characters");
-        return execute(newBody(newJson().put("content", content).toString()));
+        final WebhookMessage message = isCoalescing
+                ? new WebhookMessageBuilder().setAllowedMentions(allowedMentions).setContent(content).setPriority(priority).build()
+                : null;
+        return execute(newBody(newJson().put("content", content).toString()), message, priority);
     }
 
     private JSONObject newJson()
@@ -347,8 +526,20 @@ public class WebhookClient implements AutoCloseable {
     @Override
     public void close() {
         isShutdown = true;
-        if (queue.isEmpty())
-            pool.shutdown();
+        if (inFlight.get() == 0 && queue.isEmpty() && !isQueued.get())
+            terminate();
+    }
+
+    private void terminate() {
+        // the drain and close can both observe the idle client
+        if (!isTerminated.compareAndSet(false, true))
+            return;
+        if (bucketSnapshot != null)
+            BucketSnapshot.save(bucketSnapshot, id, bucket);
+        Bucket.unshare(bucket);
+        pool.shutdown();
+        if (journal != null)
+            journal.close();
     }
 
     protected void checkShutdown() {
@@ -363,8 +554,13 @@ public class WebhookClient implements AutoCloseable {
 
     @NotNull
     protected CompletableFuture<ReadonlyMessage> execute(RequestBody body) {
+        return execute(body, null, MessagePriority.NORMAL);
+    }
+
+    @NotNull
+    protected CompletableFuture<ReadonlyMessage> execute(RequestBody body, @Nullable WebhookMessage message, @NotNull MessagePriority priority) {
         checkShutdown();
-        return queueRequest(body);
+        return queueRequest(body, message, priority);
     }
 
     @NotNull
@@ -377,16 +573,119 @@ public class WebhookClient implements AutoCloseable {
 
     @NotNull
     protected CompletableFuture<ReadonlyMessage> queueRequest(RequestBody body) {
-        final boolean wasQueued = isQueued;
-        isQueued = true;
+        return queueRequest(body, null, MessagePriority.NORMAL);
+    }
+
+    @NotNull
+    protected CompletableFuture<ReadonlyMessage> queueRequest(RequestBody body, @Nullable WebhookMessage message, @NotNull MessagePriority priority) {
         CompletableFuture<ReadonlyMessage> callback = new CompletableFuture<>();
-        Request req = new Request(callback, body);
+        final MessageJournal journal = this.journal;
+        MessageJournal.Entry entry = null;
+        if (journal != null) {
+            try {
+                // the journaled copy can be written again, unlike streamed attachments
+                entry = MessageJournal.encode(body, priority, message == null ? 0 : message.getTimeToLive());
+                body = entry.getBody();
+            }
+            catch (IOException e) {
+                LOG.error("Could not read request body for journal", e);
+                callback.completeExceptionally(e);
+                return callback;
+            }
+        }
+        Request req = new Request(callback, body, message, priority);
+        if (!reserveCapacity(req))
+            return callback;
+        if (entry != null) {
+            try {
+                final long id = journal.append(entry);
+                callback.whenComplete((result, error) -> journal.ack(id));
+            }
+            catch (IOException e) {
+                LOG.error("Could not append request to journal", e);
+                callback.completeExceptionally(e);
+                return callback;
+            }
+        }
         enqueuePair(req);
-        if (!wasQueued)
+        if (isQueued.compareAndSet(false, true))
             backoffQueue();
         return callback;
     }
 
+    private boolean reserveCapacity(Request req) {
+        final Semaphore permits = queuePermits;
+        if (permits == null)
+            return true;
+        switch (overflowPolicy) {
+        case BLOCK:
+            try {
+                permits.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for queue capacity", e);
+            }
+            break;
+        case REJECT:
+            if (!permits.tryAcquire())
+                throw new RejectedExecutionException("Cannot send to full queue!");
+            break;
+        case DROP_OLDEST:
+            while (!permits.tryAcquire()) {
+                // dropping completes the future, which releases its permit
+                final Request oldest = queue.pollOldest(req.priority);
+                if (oldest == null) {
+                    drop(req);
+                    return false;
+                }
+                drop(oldest);
+            }
+            break;
+        case DROP_NEWEST:
+            if (!permits.tryAcquire()) {
+                drop(req);
+                return false;
+            }
+            break;
+        }
+        // the permit is held until the request is done, regardless of its outcome
+        req.future.whenComplete((message, error) -> permits.release());
+        return true;
+    }
+
+    private void expire(Request req) {
+        expiredCount.incrementAndGet();
+        LOG.debug("Skipping webhook request which expired after {} ms", req.timeToLive);
+        req.future.completeExceptionally(new MessageExpiredException(req.timeToLive));
+    }
+
+    // Queues the requests which were not completed by the previous client using the same journal
+    void replayJournal() {
+        final long now = System.currentTimeMillis();
+        for (MessageJournal.Entry entry : journal.takeRecovered()) {
+            final CompletableFuture<ReadonlyMessage> future = new CompletableFuture<>();
+            final long remaining = entry.expiresAt == 0 ? 0 : entry.expiresAt - now;
+            final Request req = new Request(future, entry.getBody(), null, entry.priority,
+                    entry.timeToLive, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining));
+            future.whenComplete((result, error) -> journal.ack(entry.getId()));
+            enqueuePair(req);
+        }
+        if (!queue.isEmpty() && isQueued.compareAndSet(false, true))
+            backoffQueue();
+    }
+
+    private void drop(Request req) {
+        droppedCount.incrementAndGet();
+        LOG.debug("Dropping webhook request due to full queue with policy {}", overflowPolicy);
+        req.future.completeExceptionally(new MessageDroppedException(overflowPolicy));
+    }
+
+    private void shed(Request req) {
+        LOG.debug("Shedding webhook request of failing webhook due to invalid request breaker");
+        req.future.completeExceptionally(new RejectedExecutionException("Webhook is failing and too many invalid requests were sent"));
+    }
+
     @NotNull
     protected okhttp3.Request newRequest(RequestBody body) {
         return new okhttp3.Request.Builder()
@@ -398,100 +697,644 @@ public class WebhookClient implements AutoCloseable {
     }
 
     protected void backoffQueue() {
-        long delay = bucket.retryAfter();
+        // remaining uses of the current window can be used right away
+        final Bucket bucket = this.bucket;
+        long delay = bucket.isRateLimit() ? bucket.retryAfter() : 0;
+        final long retry = retryTime - System.nanoTime();
+        if (retry > 0)
+            delay = Math.max(delay, TimeUnit.NANOSECONDS.toMillis(retry + 999_999));
         if (delay > 0)
             LOG.debug("Backing off queue for {}", delay);
         pool.schedule(this::drainQueue, delay, TimeUnit.MILLISECONDS);
     }
 
-    protected synchronized void drainQueue() {
-        boolean graceful = true;
-        while (!queue.isEmpty()) {
-            final Request pair = queue.peek();
-            graceful = executePair(pair);
-            if (!graceful)
+    protected void drainQueue() {
+        while (true) {
+            if (!drainQueue0())
+                return; // still own the drain, it has been rescheduled
+            // release ownership, a concurrent send or callback may have missed it
+            isQueued.set(false);
+            if (!canDrain() || !isQueued.compareAndSet(false, true))
                 break;
         }
-        isQueued = !graceful;
-        if (isShutdown && graceful)
-            pool.shutdown();
+        if (isShutdown && inFlight.get() == 0 && queue.isEmpty())
+            terminate();
     }
 
-    private boolean enqueuePair(@Async.Schedule Request pair) {
-        return queue.add(pair);
+    private boolean canDrain() {
+        if (queue.isEmpty())
+            return false;
+        if (!isAsyncDispatch)
+            return true;
+        // without pending callbacks, only the drain itself can back off for the rate-limit
+        // the remaining uses of the bucket already exclude the requests in flight
+        final int pending = inFlight.get();
+        return pending == 0 || pending < maxInFlight && bucket.remaining() > 0;
     }
 
-    private boolean executePair(@Async.Execute Request req) {
-        if (req.future.isCancelled()) {
-            queue.poll();
-            return true;
+    private void signalQueue() {
+        if (!isQueued.compareAndSet(false, true))
+            return;
+        try {
+            pool.execute(this::drainQueue);
+        }
+        catch (RejectedExecutionException e) {
+            isQueued.set(false);
+            if (!isShutdown)
+                throw e;
         }
+    }
 
-        final okhttp3.Request request = newRequest(req.body);
-        try (Response response = client.newCall(request).execute()) {
-            bucket.update(response);
-            if (response.code() == Bucket.RATE_LIMIT_CODE) {
+    // Returns false if the drain was rescheduled, true if it can be released
+    private boolean drainQueue0() {
+        if (journal != null) // requests are synced in batches, at the latest before they are sent
+            journal.sync();
+        int executed = 0;
+        while (!queue.isEmpty()) {
+            if (isAsyncDispatch) {
+                final int pending = inFlight.get();
+                if (pending >= maxInFlight || bucket.remaining() <= 0) {
+                    // callbacks of pending requests signal the queue, otherwise we have to wait for the rate-limit
+                    if (pending > 0)
+                        return true;
+                    backoffQueue();
+                    return false;
+                }
+            }
+            else if (executed++ == DRAIN_BATCH_SIZE) {
+                // round-robin with other clients on the same executor
+                pool.execute(this::drainQueue);
+                return false;
+            }
+            else if (GlobalRateLimit.isRateLimit()) {
+                // another client hit the global rate-limit
                 backoffQueue();
                 return false;
             }
-            else if (!response.isSuccessful()) {
-                final HttpException exception = failure(response);
-                LOG.error("Sending a webhook message failed with non-OK http response", exception);
-                queue.poll().future.completeExceptionally(exception);
-                return true;
+            Request pair = queue.poll();
+            if (pair == null) // dropped by a concurrent send
+                break;
+            if (pair.future.isCancelled())
+                continue;
+            if (pair.isExpired(System.nanoTime())) {
+                expire(pair);
+                continue;
+            }
+            if (retryTime - System.nanoTime() > 0) {
+                // a failed request is waiting for its retry
+                queue.addFirst(pair);
+                backoffQueue();
+                return false;
+            }
+            final InvalidRequestBreaker.State breaker = InvalidRequestBreaker.getState();
+            if (breaker == InvalidRequestBreaker.State.OPEN) {
+                // too close to the invalid request ban, wait until enough invalid requests left the window
+                queue.addFirst(pair);
+                if (isAsyncDispatch && inFlight.get() > 0)
+                    return true;
+                final long delay = InvalidRequestBreaker.retryAfter();
+                LOG.debug("Deferring queue for {} due to invalid request breaker", delay);
+                pool.schedule(this::drainQueue, delay, TimeUnit.MILLISECONDS);
+                return false;
             }
-            ReadonlyMessage message = null;
-            if (parseMessage) {
-                InputStream body = IOUtil.getBody(response);
-                JSONObject json = IOUtil.toJSON(body);
-                message = EntityFactory.makeMessage(json);
+            else if (isFailing) {
+                if (breaker == InvalidRequestBreaker.State.THROTTLED) {
+                    shed(pair);
+                    continue;
+                }
+                isFailing = false;
             }
-            queue.poll().future.complete(message);
-            if (bucket.isRateLimit()) {
+            final Bucket acquired = bucket;
+            final long pace = isPacing ? acquired.pace() : 0;
+            if (pace > 0) {
+                // callbacks cannot take over the drain while it is scheduled
+                queue.addFirst(pair);
+                pool.schedule(this::drainQueue, pace, TimeUnit.MILLISECONDS);
+                return false;
+            }
+            if (!acquired.tryAcquire(isPacing)) {
+                // other clients or processes used up the shared bucket
+                queue.addFirst(pair);
+                if (isAsyncDispatch && inFlight.get() > 0)
+                    return true;
+                backoffQueue();
+                return false;
+            }
+            if (isCoalescing)
+                pair = coalesce(pair);
+            pair.acquired = acquired;
+            if (isAsyncDispatch) {
+                inFlight.incrementAndGet();
+                executePairAsync(pair);
+                continue;
+            }
+            if (!executePair(pair)) {
                 backoffQueue();
                 return false;
             }
         }
-        catch (JSONException | IOException e) {
+        return true;
+    }
+
+    // Merges compatible requests following the head of the queue into one message
+    private Request coalesce(Request head) {
+        final WebhookMessage first = head.message;
+        if (!isCoalescable(first))
+            return head;
+        final StringBuilder content = new StringBuilder(first.getContent() == null ? "" : first.getContent());
+        final List<WebhookEmbed> embeds = new ArrayList<>(first.getEmbeds());
+        final List<Request> merged = new ArrayList<>();
+        merged.add(head);
+        // the merged request expires with the first of its parts
+        Request earliest = head;
+
+        Request next;
+        while ((next = queue.peek()) != null) {
+            final WebhookMessage message = next.message;
+            final boolean skip = next.future.isCancelled() || next.isExpired(System.nanoTime());
+            if (!skip && !canMerge(first, content, embeds, message))
+                break;
+            final Request polled = queue.poll();
+            if (polled != next) {
+                // head was dropped by a concurrent send, the new head has not been checked
+                if (polled != null)
+                    queue.addFirst(polled);
+                break;
+            }
+            if (skip) {
+                if (!next.future.isCancelled())
+                    expire(next);
+                continue;
+            }
+            if (next.expiresBefore(earliest))
+                earliest = next;
+            final String text = message.getContent();
+            if (text != null && !text.isEmpty()) {
+                if (content.length() > 0)
+                    content.append('\n');
+                content.append(text);
+            }
+            embeds.addAll(message.getEmbeds());
+            merged.add(next);
+        }
+
+        if (merged.size() == 1)
+            return head;
+        LOG.trace("Coalesced {} queued messages into one request", merged.size());
+        final WebhookMessage message = new WebhookMessageBuilder()
+                .setUsername(first.getUsername())
+                .setAvatarUrl(first.getAvatarUrl())
+                .setTTS(first.isTTS())
+                .setAllowedMentions(first.getAllowedMentions())
+                .setPriority(head.priority)
+                .setContent(content.toString())
+                .addEmbeds(embeds)
+                .build();
+        final CompletableFuture<ReadonlyMessage> future = new CompletableFuture<>();
+        future.whenComplete((result, error) -> {
+            for (Request req : merged) {
+                if (error == null)
+                    req.future.complete(result);
+                else
+                    req.future.completeExceptionally(error);
+            }
+        });
+        return new Request(future, message.getBody(), message, head.priority, earliest.timeToLive, earliest.deadline);
+    }
+
+    private static boolean isCoalescable(@Nullable WebhookMessage message) {
+        return message != null && !message.isFile();
+    }
+
+    private static boolean canMerge(WebhookMessage first, CharSequence content, List<WebhookEmbed> embeds, @Nullable WebhookMessage next) {
+        if (!isCoalescable(next)
+                || next.isTTS() != first.isTTS()
+                || !Objects.equals(next.getUsername(), first.getUsername())
+                || !Objects.equals(next.getAvatarUrl(), first.getAvatarUrl())
+                || !next.getAllowedMentions().toJSONString().equals(first.getAllowedMentions().toJSONString()))
+            return false;
+        final String text = next.getContent();
+        final int length = text == null || text.isEmpty() ? 0 : text.length() + (content.length() > 0 ? 1 : 0);
+        // content is always displayed above the embeds, only merge if this keeps the visual order
+        if (length > 0 && !embeds.isEmpty())
+            return false;
+        return content.length() + length <= 2000
+            && embeds.size() + next.getEmbeds().size() <= WebhookMessage.MAX_EMBEDS;
+    }
+
+    private boolean enqueuePair(@Async.Schedule Request pair) {
+        pending.incrementAndGet();
+        pair.future.whenComplete((result, error) -> pending.decrementAndGet());
+        return queue.add(pair);
+    }
+
+    private boolean executePair(@Async.Execute Request req) {
+        final okhttp3.Request request = newRequest(req.body);
+        try (Response response = client.newCall(request).execute()) {
+            return handleResponse(req, response);
+        }
+        catch (IOException e) {
+            release(req, false);
+            if (retry(req, e.toString()))
+                return false;
+            LOG.error("There was some error while sending a webhook message", e);
+            req.future.completeExceptionally(e);
+        }
+        catch (JSONException e) {
             LOG.error("There was some error while sending a webhook message", e);
-            queue.poll().future.completeExceptionally(e);
+            req.future.completeExceptionally(e);
         }
         return true;
     }
 
+    private void executePairAsync(@Async.Execute Request req) {
+        final okhttp3.Request request = newRequest(req.body);
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                try {
+                    release(req, false);
+                    if (!retry(req, e.toString())) {
+                        LOG.error("There was some error while sending a webhook message", e);
+                        req.future.completeExceptionally(e);
+                    }
+                }
+                finally {
+                    inFlight.decrementAndGet();
+                    signalQueue();
+                }
+            }
+
+            @Override
+            public void onResponse(@NotNull Call call, @NotNull Response response) {
+                try {
+                    handleResponse(req, response);
+                }
+                catch (Throwable e) {
+                    // nothing else completes the request once it left the queue
+                    release(req, false);
+                    LOG.error("There was some error while sending a webhook message", e);
+                    req.future.completeExceptionally(e);
+                }
+                finally {
+                    response.close();
+                    // the drain checks the bucket before dispatching more requests
+                    inFlight.decrementAndGet();
+                    signalQueue();
+                }
+            }
+        });
+    }
+
+    // Returns false if the bucket is exhausted and the queue has to back off
+    private boolean handleResponse(Request req, Response response) throws IOException {
+        final Bucket bucket = resolveBucket(response);
+        bucket.update(response);
+        release(req, true);
+        isFailing = InvalidRequestBreaker.record(response);
+        if (response.code() == Bucket.RATE_LIMIT_CODE) {
+            // retry as soon as the rate-limit is over, nothing in the same lane can overtake this request
+            queue.addFirst(req);
+            return false;
+        }
+        else if (!response.isSuccessful()) {
+            if (retryPolicy.isRetryable(response.code()) && retry(req, "status " + response.code()))
+                return false;
+            final HttpException exception = failure(response);
+            LOG.error("Sending a webhook message failed with non-OK http response", exception);
+            req.future.completeExceptionally(exception);
+            return true;
+        }
+        ReadonlyMessage message = null;
+        if (parseMessage) {
+            InputStream body = IOUtil.getBody(response);
+            JSONObject json = IOUtil.toJSON(body);
+            message = EntityFactory.makeMessage(json);
+        }
+        req.future.complete(message);
+        return !bucket.isRateLimit();
+    }
+
+    // Returns the request to the bucket it was taken from, unless it was already released
+    private static void release(Request req, boolean answered) {
+        final Bucket acquired = req.acquired;
+        if (acquired == null)
+            return;
+        req.acquired = null;
+        acquired.release(answered);
+    }
+
+    // Requeues the request at the head of its lane, returns false if the retry policy allows no further attempt
+    private boolean retry(Request req, String reason) {
+        final int attempt = ++req.attempts;
+        if (attempt >= retryPolicy.getMaxAttempts())
+            return false;
+        final long delay = retryPolicy.getDelay(attempt);
+        LOG.warn("Retrying webhook request in {} ms after attempt {} of {} failed with {}",
+                 delay, attempt, retryPolicy.getMaxAttempts(), reason);
+        retryTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        queue.addFirst(req);
+        return true;
+    }
+
+    // Moves this client to the bucket shared by all webhooks with the same bucket hash
+    // synchronized to take and return each shared bucket once, responses of pipelined requests resolve concurrently
+    private synchronized Bucket resolveBucket(Response response) {
+        final Bucket current = bucket;
+        final String hash = response.header("X-RateLimit-Bucket");
+        if (hash == null || hash.equals(current.hash))
+            return current;
+        LOG.debug("Moving webhook {} to shared rate-limit bucket {}", Long.toUnsignedString(id), hash);
+        final Bucket shared = rateLimitFile != null ? rateLimitFile.bucket(hash) : Bucket.shared(hash);
+        Bucket.unshare(current);
+        bucket = shared;
+        return shared;
+    }
+
+    /**
+     * Rate-limit state of a webhook, or of all webhooks sharing the same bucket hash.
+     * <br>Reset times are tracked with a monotonic clock based on the {@code X-RateLimit-Reset-After} header,
+     * which keeps the limiter accurate to the millisecond and independent of wall clock changes.
+     */
     protected static final class Bucket {
         public static final int RATE_LIMIT_CODE = 429;
-        public long resetTime;
-        public int remainingUses;
-        public int limit = Integer.MAX_VALUE;
+        // buckets by their hash, webhooks in the same channel can share one bucket
+        private static final Map<String, Bucket> SHARED = new ConcurrentHashMap<>();
+        // unused buckets are dropped once the map grows beyond this size
+        private static final int PRUNE_THRESHOLD = 64;
+        private static volatile int pruneThreshold = PRUNE_THRESHOLD;
+        // resets of two responses further apart than this belong to different windows
+        private static final long WINDOW_TOLERANCE = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final String hash;
+        // the time at which the bucket is reset, in nanoseconds of the clock of this bucket
+        private long resetTime;
+        private int remainingUses;
+        private int limit = Integer.MAX_VALUE;
+        // requests taken from this bucket which have not been answered yet
+        private int reserved;
+        // clients using this shared bucket, guarded by its entry in SHARED
+        private int references;
+        private final LongSupplier clock;
+        // state shared with other processes, null if the state is local to this bucket
+        private final RateLimitFile.Slot slot;
+        // longest reset interval seen so far, the length of a full window
+        private long window;
+        // the time at which the last paced request was sent
+        private long lastPacedTime;
+
+        Bucket() {
+            this(null, System::nanoTime, null);
+        }
+
+        // Bucket with the provided monotonic clock in nanoseconds instead of System.nanoTime()
+        Bucket(@NotNull LongSupplier clock) {
+            this(null, clock, null);
+        }
+
+        Bucket(String hash, @Nullable RateLimitFile.Slot slot) {
+            this(hash, System::nanoTime, slot);
+        }
+
+        private Bucket(String hash, LongSupplier clock, RateLimitFile.Slot slot) {
+            this.hash = hash;
+            this.clock = Objects.requireNonNull(clock, "Clock");
+            this.slot = slot;
+            this.resetTime = clock.getAsLong();
+            this.lastPacedTime = resetTime - TimeUnit.DAYS.toNanos(1);
+        }
+
+        /**
+         * The bucket for the provided hash, shared by all clients in this JVM.
+         * <br>Every call has to be matched by {@link #unshare(Bucket)}.
+         *
+         * @param  hash
+         *         The bucket hash from the {@code X-RateLimit-Bucket} header
+         *
+         * @return The shared bucket
+         */
+        @NotNull
+        static Bucket shared(@NotNull String hash) {
+            if (SHARED.size() > pruneThreshold) {
+                // amortized over the buckets added since the last pass
+                for (String key : SHARED.keySet())
+                    SHARED.computeIfPresent(key, (k, bucket) -> bucket.isUnused() ? null : bucket);
+                pruneThreshold = Math.max(PRUNE_THRESHOLD, SHARED.size() * 2);
+            }
+            return SHARED.compute(hash, (key, bucket) -> {
+                if (bucket == null)
+                    bucket = new Bucket(key, System::nanoTime, null);
+                bucket.references++;
+                return bucket;
+            });
+        }
+
+        /**
+         * Returns a bucket taken from {@link #shared(String)} once the client moved to another bucket or was closed.
+         * <br>Buckets without clients are dropped once their reset has passed,
+         * until then a new client with the same hash still respects the limit.
+         * Other buckets are ignored.
+         *
+         * @param  bucket
+         *         The bucket which is no longer used by the client
+         */
+        static void unshare(@NotNull Bucket bucket) {
+            if (bucket.hash == null || bucket.slot != null)
+                return;
+            SHARED.computeIfPresent(bucket.hash, (key, current) -> {
+                if (current == bucket)
+                    current.references--;
+                return current.isUnused() ? null : current;
+            });
+        }
+
+        // only called while holding the entry in SHARED
+        private boolean isUnused() {
+            return references <= 0 && retryAfter() <= 0;
+        }
+
+        /**
+         * Takes one request from this bucket before it is sent.
+         * <br>A local bucket reserves the request until {@link #release(boolean)},
+         * so clients sharing the bucket cannot pipeline more requests than remain in the window.
+         * Buckets shared with other processes take the request from the file instead.
+         *
+         * @param  paced
+         *         Whether the request also takes the slot of the next paced request, see {@link #pace()}
+         *
+         * @return True, if the request may be sent
+         */
+        synchronized boolean tryAcquire(boolean paced) {
+            if (paced && pace() > 0) // another client took the slot
+                return false;
+            if (slot != null) {
+                if (!slot.tryAcquire())
+                    return false;
+            }
+            else if (isRateLimit()) {
+                return false;
+            }
+            else {
+                reserved++;
+            }
+            // only a request which is actually sent uses up the pacing interval
+            if (paced)
+                lastPacedTime = clock.getAsLong();
+            return true;
+        }
+
+        /**
+         * Returns a request taken by {@link #tryAcquire(boolean)} once it completed.
+         * <br>The remaining uses are updated by the response before its reservation is released.
+         * A request which was not answered did not count against the rate-limit and is given back to the bucket.
+         *
+         * @param answered
+         *        Whether discord responded to the request
+         */
+        synchronized void release(boolean answered) {
+            if (slot == null)
+                reserved = Math.max(0, reserved - 1);
+            else if (!answered)
+                slot.release();
+        }
 
         public synchronized boolean isRateLimit() {
-            if (retryAfter() <= 0)
+            if (GlobalRateLimit.isRateLimit())
+                return true;
+            if (slot != null)
+                return slot.retryAfter() > 0;
+            if (resetTime - clock.getAsLong() <= 0)
                 remainingUses = limit;
-            return remainingUses <= 0;
+            return remainingUses - reserved <= 0;
         }
 
+        public synchronized int remaining() {
+            if (slot != null)
+                return GlobalRateLimit.isRateLimit() ? 0 : slot.remaining();
+            return isRateLimit() ? 0 : remainingUses - reserved;
+        }
+
+        /**
+         * The time until this bucket is reset, rounded up to full milliseconds.
+         *
+         * @return The delay in milliseconds, zero or negative if the bucket is already reset
+         */
         public synchronized long retryAfter() {
-            return resetTime - System.currentTimeMillis();
+            if (slot != null)
+                return Math.max(slot.retryAfter(), GlobalRateLimit.retryAfter());
+            final long nanos = resetTime - clock.getAsLong();
+            final long millis = nanos > 0 ? TimeUnit.NANOSECONDS.toMillis(nanos + 999_999) : TimeUnit.NANOSECONDS.toMillis(nanos);
+            return Math.max(millis, GlobalRateLimit.retryAfter());
         }
 
-        private synchronized void handleRatelimit(Response response, long current) throws IOException {
+        /**
+         * The delay until the next paced request may be sent.
+         * <br>The remaining uses of the current window are spaced evenly until the reset,
+         * after a reset the full window is divided by the limit.
+         * The slot is taken by {@link #tryAcquire(boolean)} once the request can actually be sent.
+         *
+         * @return The delay in milliseconds until the request may be sent, zero if it may be sent now
+         */
+        public synchronized long pace() {
+            final long now = clock.getAsLong();
+            final long wait = lastPacedTime + interval(now) - now;
+            return wait > 0 ? TimeUnit.NANOSECONDS.toMillis(wait + 999_999) : 0;
+        }
+
+        private long interval(long now) {
+            if (limit == Integer.MAX_VALUE) // no response yet
+                return 0;
+            final long reset;
+            final int remaining;
+            if (slot != null) {
+                reset = TimeUnit.MILLISECONDS.toNanos(slot.retryAfter());
+                remaining = slot.remaining();
+            }
+            else {
+                reset = resetTime - now;
+                remaining = remainingUses;
+            }
+            if (reset <= 0)
+                return window / limit;
+            // an exhausted bucket is handled by the rate-limit
+            return remaining <= 0 ? 0 : reset / remaining;
+        }
+
+        // Estimated time in milliseconds until a request is sent after the provided amount of queued requests
+        synchronized long estimateWait(int queued) {
+            final int remaining = remaining();
+            if (queued < remaining)
+                return 0;
+            final long reset = Math.max(0, retryAfter());
+            if (limit == Integer.MAX_VALUE || limit <= 0)
+                return reset;
+            // every further window serves another limit of requests
+            final long windowMillis = window > 0 ? TimeUnit.NANOSECONDS.toMillis(window) : reset;
+            return reset + (queued - remaining) / limit * windowMillis;
+        }
+
+        // State for a snapshot, null if the bucket has not been updated or is already reset
+        @Nullable
+        synchronized JSONObject snapshot(long epochMillis) {
+            if (slot != null || limit == Integer.MAX_VALUE) // file-backed buckets are persisted by the file
+                return null;
+            final long retryAfter = retryAfter();
+            if (retryAfter <= 0)
+                return null;
+            final JSONObject json = new JSONObject()
+                    .put("limit", limit)
+                    .put("remaining", remainingUses)
+                    .put("reset", epochMillis + retryAfter)
+                    .put("window", TimeUnit.NANOSECONDS.toMillis(window));
+            return hash == null ? json : json.put("bucket", hash);
+        }
+
+        // Returns true if the state of the snapshot was applied, a bucket updated by a response is not changed
+        synchronized boolean restore(JSONObject json, long epochMillis) {
+            final long resetAfter = json.optLong("reset") - epochMillis;
+            if (slot != null || limit != Integer.MAX_VALUE || resetAfter <= 0)
+                return false;
+            limit = json.getInt("limit");
+            remainingUses = json.getInt("remaining");
+            resetTime = clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(resetAfter);
+            window = TimeUnit.MILLISECONDS.toNanos(json.optLong("window"));
+            return true;
+        }
+
+        // the response is parsed before taking the lock, the bucket may be shared by other clients
+        // which should not wait for a slow body
+        private void handleRatelimit(Response response, long current) throws IOException {
             final String retryAfter = response.header("Retry-After");
+            boolean global = Boolean.parseBoolean(response.header("X-RateLimit-Global"));
             long delay;
             if (retryAfter == null) {
                 InputStream stream = IOUtil.getBody(response);
                 final JSONObject body = IOUtil.toJSON(stream);
                 delay = body.getLong("retry_after");
+                global |= body.optBoolean("global");
             }
             else {
                 delay = Long.parseLong(retryAfter);
             }
-            LOG.error("Encountered 429, retrying after {}", delay);
-            resetTime = current + delay;
+            synchronized (this) {
+                resetTime = current + TimeUnit.MILLISECONDS.toNanos(delay);
+                remainingUses = 0;
+                if (slot != null)
+                    slot.rateLimit(delay);
+            }
+            if (global) {
+                LOG.error("Encountered global 429, pausing all webhook clients for {}", delay);
+                GlobalRateLimit.update(delay);
+                if (slot != null)
+                    slot.pauseGlobal(delay);
+            }
+            else {
+                LOG.error("Encountered 429, retrying after {}", delay);
+            }
         }
 
-        private synchronized void update0(Response response) throws IOException {
-            final long current = System.currentTimeMillis();
+        private void update0(Response response) throws IOException {
+            final long current = clock.getAsLong();
             final boolean is429 = response.code() == RATE_LIMIT_CODE;
             if (is429) {
                 handleRatelimit(response, current);
@@ -501,18 +1344,54 @@ public class WebhookClient implements AutoCloseable {
                           response.code(), new IOUtil.Lazy(() -> new String(IOUtil.readAllBytes(IOUtil.getBody(response)))));
                 return;
             }
-            remainingUses = Integer.parseInt(response.header("X-RateLimit-Remaining"));
-            limit = Integer.parseInt(response.header("X-RateLimit-Limit"));
-            final String date = response.header("Date");
+            final int remaining = Integer.parseInt(response.header("X-RateLimit-Remaining"));
+            final int limit = Integer.parseInt(response.header("X-RateLimit-Limit"));
+            if (is429) {
+                update(remaining, limit, false, 0, 0, current);
+                return;
+            }
 
-            if (date != null && !is429) {
+            final String resetAfter = response.header("X-RateLimit-Reset-After");
+            if (resetAfter != null) {
+                // fractional seconds relative to the response, no clock synchronization required
+                final double seconds = Double.parseDouble(resetAfter);
+                final long reset = current + (long) Math.ceil(seconds * 1_000_000_000L);
+                update(remaining, limit, true, reset, (long) Math.ceil(seconds * 1000), current);
+                return;
+            }
+            final String date = response.header("Date");
+            if (date != null) {
                 final long reset = Long.parseLong(response.header("X-RateLimit-Reset")); //epoch seconds
                 OffsetDateTime tDate = OffsetDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME);
                 final long delay = tDate.toInstant().until(Instant.ofEpochSecond(reset), ChronoUnit.MILLIS);
-                resetTime = current + delay;
+                update(remaining, limit, true, current + TimeUnit.MILLISECONDS.toNanos(delay), delay, current);
+            }
+            else {
+                update(remaining, limit, false, 0, 0, current);
             }
         }
 
+        // applies the parsed headers under the lock
+        private synchronized void update(int remaining, int limit, boolean hasReset, long reset, long delay, long current) {
+            this.limit = limit;
+            if (!hasReset) {
+                remainingUses = remaining;
+                return;
+            }
+            updateWindow(remaining, reset, current);
+            if (slot != null)
+                slot.update(remaining, limit, delay);
+        }
+
+        private void updateWindow(int remaining, long reset, long current) {
+            // responses of the same window can arrive out of order when several requests are in flight,
+            // the lowest remaining count is the most recent one
+            final boolean sameWindow = resetTime - current > 0 && reset - resetTime <= WINDOW_TOLERANCE;
+            remainingUses = sameWindow ? Math.min(remainingUses, remaining) : remaining;
+            resetTime = reset;
+            window = Math.max(window, reset - current);
+        }
+
         public void update(Response response) {
             try {
                 update0(response);
@@ -523,13 +1402,125 @@ public class WebhookClient implements AutoCloseable {
         }
     }
 
+    // One FIFO lane per priority, the drain serves the highest non-empty lane first.
+    // Every time a lane is passed over for a higher one it gains credit,
+    // once it reaches STARVATION_LIMIT the lane is served next regardless of the higher lanes.
+    protected static final class RequestQueue {
+        /** Amount of requests from higher lanes a waiting lane yields to before it is served */
+        public static final int STARVATION_LIMIT = 8;
+
+        private final Deque<Request>[] lanes;
+        // only accessed by the owner of the drain
+        private final int[] skipped;
+
+        @SuppressWarnings("unchecked")
+        private RequestQueue() {
+            final int count = MessagePriority.values().length;
+            this.lanes = (Deque<Request>[]) new Deque<?>[count];
+            this.skipped = new int[count];
+            for (int i = 0; i < count; i++)
+                lanes[i] = new ConcurrentLinkedDeque<>();
+        }
+
+        public boolean isEmpty() {
+            for (Deque<Request> lane : lanes) {
+                if (!lane.isEmpty())
+                    return false;
+            }
+            return true;
+        }
+
+        private boolean add(Request req) {
+            return lanes[req.priority.ordinal()].add(req);
+        }
+
+        private void addFirst(Request req) {
+            lanes[req.priority.ordinal()].addFirst(req);
+        }
+
+        @Nullable
+        private Request peek() {
+            final int lane = select();
+            return lane < 0 ? null : lanes[lane].peek();
+        }
+
+        @Nullable
+        private Request poll() {
+            int lane;
+            while ((lane = select()) >= 0) {
+                final Request req = lanes[lane].poll();
+                if (req == null) // dropped by a concurrent send
+                    continue;
+                skipped[lane] = 0;
+                for (int i = lane + 1; i < lanes.length; i++) {
+                    if (!lanes[i].isEmpty())
+                        skipped[i]++;
+                }
+                return req;
+            }
+            return null;
+        }
+
+        // Removes the oldest request of the lowest lane, but never one of higher priority than the provided one
+        @Nullable
+        private Request pollOldest(MessagePriority priority) {
+            for (int i = lanes.length - 1; i >= priority.ordinal(); i--) {
+                final Request req = lanes[i].pollFirst();
+                if (req != null)
+                    return req;
+            }
+            return null;
+        }
+
+        private int select() {
+            int first = -1;
+            for (int i = 0; i < lanes.length; i++) {
+                if (lanes[i].isEmpty())
+                    continue;
+                if (first < 0)
+                    first = i;
+                else if (skipped[i] >= STARVATION_LIMIT)
+                    return i;
+            }
+            return first;
+        }
+    }
+
     private static final class Request {
         private final CompletableFuture<ReadonlyMessage> future;
         private final RequestBody body;
+        private final WebhookMessage message;
+        private final MessagePriority priority;
+        private final long timeToLive; // 0 if the request never expires
+        private final long deadline; // in System.nanoTime()
+        private int attempts; // failed attempts, only accessed by the thread handling the current attempt
+        private Bucket acquired; // bucket of the current attempt until it is released, same access as attempts
+
+        public Request(CompletableFuture<ReadonlyMessage> future, RequestBody body, WebhookMessage message, MessagePriority priority) {
+            this.future = future;
+            this.body = body;
+            this.message = message;
+            this.priority = priority;
+            this.timeToLive = message == null ? 0 : message.getTimeToLive();
+            this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeToLive);
+        }
 
-        public Request(CompletableFuture<ReadonlyMessage> future, RequestBody body) {
+        private Request(CompletableFuture<ReadonlyMessage> future, RequestBody body, WebhookMessage message,
+                        MessagePriority priority, long timeToLive, long deadline) {
             this.future = future;
             this.body = body;
+            this.message = message;
+            this.priority = priority;
+            this.timeToLive = timeToLive;
+            this.deadline = deadline;
+        }
+
+        private boolean isExpired(long now) {
+            return timeToLive > 0 && now - deadline >= 0;
+        }
+
+        private boolean expiresBefore(Request other) {
+            return timeToLive > 0 && (other.timeToLive == 0 || deadline - other.deadline < 0);
         }
     }
 }
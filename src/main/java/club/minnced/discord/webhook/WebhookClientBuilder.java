@@ -20,14 +20,22 @@ import club.minnced.discord.webhook.external.D4JWebhookClient;
 import club.minnced.discord.webhook.external.JDAWebhookClient;
 import club.minnced.discord.webhook.external.JavacordWebhookClient;
 import club.minnced.discord.webhook.send.AllowedMentions;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +52,11 @@ public class WebhookClientBuilder { //TODO: tests
      */
     public static final Pattern WEBHOOK_PATTERN = Pattern.compile("(?:https?://)?(?:\\w+\\.)?discord(?:app)?\\.com/api(?:/v\\d+)?/webhooks/(\\d+)/([\\w-]+)(?:/(?:\\w+)?)?");
 
+    private static final Logger LOG = LoggerFactory.getLogger(WebhookClientBuilder.class);
+    private static final SharedPool[] SHARED_POOLS = new SharedPool[2];
+    private static final Method[] VIRTUAL_THREAD_BUILDER = findVirtualThreadBuilder();
+    private static int sharedPoolSize = Math.max(2, Runtime.getRuntime().availableProcessors());
+
     protected final long id;
     protected final String token;
     protected ScheduledExecutorService pool;
@@ -52,6 +65,20 @@ public class WebhookClientBuilder { //TODO: tests
     protected AllowedMentions allowedMentions = AllowedMentions.all();
     protected boolean isDaemon;
     protected boolean parseMessage = true;
+    protected boolean isAsyncDispatch;
+    protected boolean isVirtualThreads;
+    protected boolean isCoalescing;
+    protected boolean isPacing;
+    protected int maxInFlight = 1;
+    protected int queueCapacity;
+    protected OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    protected File journalDirectory;
+    protected File rateLimitFile;
+    protected int rateLimitCapacity = RateLimitFile.DEFAULT_CAPACITY;
+    protected File bucketSnapshot;
+    protected RetryPolicy retryPolicy = RetryPolicy.NONE;
+    protected String baseUrl;
+    protected int journalSegmentSize = MessageJournal.DEFAULT_SEGMENT_SIZE;
 
     /**
      * Creates a new WebhookClientBuilder for the specified webhook components
@@ -153,10 +180,37 @@ public class WebhookClientBuilder { //TODO: tests
     }
 
 
+    /**
+     * Configures the amount of worker threads used by the shared default executor.
+     * <br>Clients which neither configure an {@link #setExecutorService(java.util.concurrent.ScheduledExecutorService) executor}
+     * nor a {@link #setThreadFactory(java.util.concurrent.ThreadFactory) thread factory} are served by this shared executor,
+     * instead of starting a thread for each webhook.
+     * <br>This can be changed at any time and also applies to existing clients.
+     *
+     * <p>Default: the number of available processors, at least 2
+     *
+     * @param  threads
+     *         The amount of worker threads
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the provided amount is not positive
+     */
+    public static synchronized void setSharedPoolSize(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Shared pool size must be positive");
+        sharedPoolSize = threads;
+        for (SharedPool pool : SHARED_POOLS) {
+            if (pool != null)
+                pool.setCorePoolSize(threads);
+        }
+    }
+
     /**
      * The {@link java.util.concurrent.ScheduledExecutorService} that is used to execute
      * send requests in the resulting {@link club.minnced.discord.webhook.WebhookClient}.
      * <br>This will be closed by a call to {@link WebhookClient#close()}.
+     * <br>If neither this nor a {@link #setThreadFactory(java.util.concurrent.ThreadFactory) thread factory} is configured,
+     * the client uses a shared executor, see {@link #setSharedPoolSize(int)}.
      *
      * @param  executorService
      *         The executor service to use
@@ -189,6 +243,7 @@ public class WebhookClientBuilder { //TODO: tests
      * The {@link java.util.concurrent.ThreadFactory} that is used to initialize
      * the default {@link java.util.concurrent.ScheduledExecutorService} used if
      * {@link #setExecutorService(java.util.concurrent.ScheduledExecutorService)} is not configured.
+     * <br>Configuring a thread factory gives the client its own dedicated thread instead of using the shared executor.
      *
      * @param  factory
      *         The factory to use
@@ -248,6 +303,327 @@ public class WebhookClientBuilder { //TODO: tests
         return this;
     }
 
+    /**
+     * Whether requests should be dispatched through asynchronous http calls.
+     * <br>By default, the executor thread of a client is blocked for the entire network round-trip of each request.
+     * When this is enabled, requests are handed to {@link okhttp3.Call#enqueue(okhttp3.Callback)} instead and the
+     * response is handled in the callback, no thread is blocked on I/O.
+     *
+     * <p>Requests are still executed one at a time in the order they were queued and rate-limits are handled the same way.
+     * The amount of concurrent requests across all clients is limited by the {@link okhttp3.Dispatcher} of the configured
+     * {@link #setHttpClient(okhttp3.OkHttpClient) http client}.
+     *
+     * @param  isAsyncDispatch
+     *         True, if requests should be dispatched asynchronously
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setAsyncDispatch(boolean isAsyncDispatch) {
+        this.isAsyncDispatch = isAsyncDispatch;
+        return this;
+    }
+
+    /**
+     * Whether the resulting client should use its own virtual thread to drain its queue.
+     * <br>Waiting for rate-limits and blocking http calls park the virtual thread instead of occupying a platform thread,
+     * which makes it feasible to run a very large amount of clients.
+     *
+     * <p>This requires a runtime with virtual threads (Java 21+). On older runtimes, the client falls back to the
+     * default executor. This has no effect if {@link #setExecutorService(java.util.concurrent.ScheduledExecutorService)}
+     * or {@link #setThreadFactory(java.util.concurrent.ThreadFactory)} are configured to non-null values.
+     *
+     * @param  isVirtualThreads
+     *         True, if the client should use a virtual thread
+     *
+     * @return The current builder, for chaining convenience
+     *
+     * @see    #isVirtualThreadsSupported()
+     */
+    @NotNull
+    public WebhookClientBuilder setVirtualThreads(boolean isVirtualThreads) {
+        this.isVirtualThreads = isVirtualThreads;
+        return this;
+    }
+
+    /**
+     * Whether the current runtime supports virtual threads.
+     *
+     * @return True, if virtual threads are supported
+     *
+     * @see    #setVirtualThreads(boolean)
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return VIRTUAL_THREAD_BUILDER != null;
+    }
+
+    /**
+     * The maximum amount of requests the resulting client keeps in flight at once.
+     * <br>By default, a client waits for the response of a request before sending the next one,
+     * which limits the throughput of a webhook by the round-trip time rather than its rate-limit.
+     * With pipelining, the client dispatches up to this many requests concurrently, as long as the
+     * rate-limit bucket has enough remaining uses for all of them. A rate-limit pauses the entire pipeline.
+     *
+     * <p>Pipelining implies {@link #setAsyncDispatch(boolean) asynchronous dispatch}.
+     * Requests are dispatched in queue order, but concurrent requests may arrive at discord in a different order.
+     * Keep the default of {@code 1} for webhooks that require strict ordering.
+     *
+     * @param  maxInFlight
+     *         The maximum amount of concurrent requests
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the provided amount is not positive
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setPipelining(int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("Max in-flight requests must be positive");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Whether the resulting client should merge adjacent queued messages into a single request.
+     * <br>While a client is waiting for a rate-limit, messages accumulate in its queue.
+     * With coalescing, compatible messages are combined when they are sent, which saves rate-limit tokens.
+     *
+     * <p>Messages are compatible if they have the same username, avatar, tts flag and {@link AllowedMentions},
+     * and no attachments. The combined content is joined by line breaks and may not exceed 2000 characters,
+     * the combined embeds may not exceed {@value club.minnced.discord.webhook.send.WebhookMessage#MAX_EMBEDS}.
+     * All merged messages receive the same resulting {@link club.minnced.discord.webhook.receive.ReadonlyMessage}.
+     *
+     * @param  isCoalescing
+     *         True, if messages should be merged
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setCoalescing(boolean isCoalescing) {
+        this.isCoalescing = isCoalescing;
+        return this;
+    }
+
+    /**
+     * Whether the resulting client should spread its requests evenly across the rate-limit window.
+     * <br>By default, a client sends requests as long as its bucket has remaining uses and then waits for the reset.
+     * With pacing, the remaining uses are spaced out until the reset, which results in a steady latency under sustained load
+     * and leaves room for clock drift.
+     *
+     * <p>The interval is derived from the {@code X-RateLimit-Limit} and {@code X-RateLimit-Reset-After} headers.
+     * Clients sharing a bucket also share its pace.
+     *
+     * @param  isPacing
+     *         True, if requests should be paced
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setPacing(boolean isPacing) {
+        this.isPacing = isPacing;
+        return this;
+    }
+
+    /**
+     * The base url of the api the resulting client sends its requests to, instead of {@link WebhookClient#BASE_URL}.
+     * <br>This is useful to point a client at a local stand-in server for tests, or at a proxy.
+     * The webhook endpoint is appended to this url, for instance {@code http://localhost:8080/api} results in
+     * {@code http://localhost:8080/api/webhooks/<id>/<token>}.
+     *
+     * @param  baseUrl
+     *         The base url, or null to use the discord api
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the url is not a valid http or https url
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setBaseUrl(@Nullable String baseUrl) {
+        if (baseUrl != null) {
+            if (HttpUrl.parse(baseUrl) == null)
+                throw new IllegalArgumentException("Invalid base url: " + baseUrl);
+            while (baseUrl.endsWith("/"))
+                baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+        }
+        this.baseUrl = baseUrl;
+        return this;
+    }
+
+    /**
+     * Limits the amount of pending requests of the resulting client.
+     * <br>A request is pending from the moment it is sent until its future is completed.
+     * Once the limit is reached, new requests are handled according to the provided {@link OverflowPolicy}.
+     * Dropped requests are counted by {@link WebhookClient#getDroppedCount()}.
+     *
+     * <p>Default: unbounded
+     *
+     * @param  capacity
+     *         The maximum amount of pending requests, or {@code 0} for an unbounded queue
+     * @param  policy
+     *         The policy to apply when the queue is full
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the capacity is negative
+     * @throws java.lang.NullPointerException
+     *         If the policy is null
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setQueueCapacity(int capacity, @NotNull OverflowPolicy policy) {
+        Objects.requireNonNull(policy, "Policy");
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity may not be negative");
+        this.queueCapacity = capacity;
+        this.overflowPolicy = policy;
+        return this;
+    }
+
+    /**
+     * Directory of a journal that persists the queue of the resulting client across restarts.
+     * <br>Every request is appended to a memory-mapped journal before it is queued, and acknowledged once its future completes.
+     * When a client is built with a journal that contains unacknowledged requests, for instance after a crash,
+     * these requests are queued again before any new request. Their results are not observable.
+     *
+     * <p>The journal is synced to disk in batches, a crash of the operating system may lose the most recent requests
+     * or replay requests which were already sent. Each client needs its own directory, which is locked while the client is open.
+     * Journaled requests cannot be {@link #setCoalescing(boolean) coalesced} after a restart.
+     *
+     * <p>Default: no journal
+     *
+     * @param  directory
+     *         The journal directory, or null to keep the queue in memory only
+     *
+     * @return The current builder, for chaining convenience
+     *
+     * @see    #setJournal(java.io.File, int)
+     */
+    @NotNull
+    public WebhookClientBuilder setJournal(@Nullable File directory) {
+        this.journalDirectory = directory;
+        return this;
+    }
+
+    /**
+     * Directory of a journal that persists the queue of the resulting client across restarts.
+     * <br>See {@link #setJournal(java.io.File)} for details.
+     *
+     * @param  directory
+     *         The journal directory, or null to keep the queue in memory only
+     * @param  segmentSize
+     *         The size of each journal file in bytes, default 8 MiB. Files are deleted once all their requests are completed.
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the segment size is not positive
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setJournal(@Nullable File directory, int segmentSize) {
+        if (segmentSize <= 0)
+            throw new IllegalArgumentException("Segment size must be positive");
+        this.journalDirectory = directory;
+        this.journalSegmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * File used to share the rate-limit state of the resulting client with other processes on the same host.
+     * <br>Without this, every process assumes it has the full rate-limit of a webhook for itself,
+     * which leads to 429 responses when multiple processes use the same webhooks.
+     *
+     * <p>The file is memory-mapped and updated with atomic operations, all processes using the same file draw from
+     * the same rate-limit buckets, including the global rate-limit. Reset times in this file are based on the system clock,
+     * which has to be in sync for all processes. The file is created if it does not exist and can be shared by any amount of clients.
+     * A new file is sized for 2048 webhooks, use {@link #setSharedRateLimit(java.io.File, int)} for larger fleets.
+     *
+     * <p>Default: no shared state
+     *
+     * @param  file
+     *         The rate-limit file, or null to keep the rate-limit state in this process
+     *
+     * @return The current builder, for chaining convenience
+     *
+     * @see    #setSharedRateLimit(java.io.File, int)
+     */
+    @NotNull
+    public WebhookClientBuilder setSharedRateLimit(@Nullable File file) {
+        this.rateLimitFile = file;
+        return this;
+    }
+
+    /**
+     * File used to share the rate-limit state of the resulting client with other processes on the same host.
+     * <br>See {@link #setSharedRateLimit(java.io.File)} for details.
+     *
+     * <p>The capacity only applies when the file is created, an existing file keeps its size.
+     * Once the file is full, slots of idle buckets are reused. Buckets without a slot are only shared within this process.
+     *
+     * @param  file
+     *         The rate-limit file, or null to keep the rate-limit state in this process
+     * @param  capacity
+     *         The amount of webhooks using the file, across all processes
+     *
+     * @throws java.lang.IllegalArgumentException
+     *         If the capacity is not positive or larger than 1048576
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setSharedRateLimit(@Nullable File file, int capacity) {
+        if (capacity <= 0 || capacity > RateLimitFile.MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must be between 1 and " + RateLimitFile.MAX_CAPACITY);
+        this.rateLimitFile = file;
+        this.rateLimitCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * The policy for requests which failed due to an I/O error or a retryable http status, such as a 502 or a connection reset.
+     * <br>A failed request stays at the head of the queue until it is retried, later requests wait for it.
+     * With {@link #setPipelining(int) pipelining}, requests which are already in flight can overtake a retried request.
+     *
+     * <p>Default: {@link RetryPolicy#NONE}
+     *
+     * @param  policy
+     *         The retry policy
+     *
+     * @throws java.lang.NullPointerException
+     *         If the policy is null
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setRetryPolicy(@NotNull RetryPolicy policy) {
+        this.retryPolicy = Objects.requireNonNull(policy, "Policy");
+        return this;
+    }
+
+    /**
+     * File used to keep the rate-limit bucket of the resulting client across restarts.
+     * <br>A new client knows nothing about its rate-limit, it sends right away and learns the limit from the responses.
+     * When many clients restart at once, this leads to 429 responses for webhooks that were exhausted before the restart.
+     *
+     * <p>The bucket is saved to this file when the client is closed, and restored when a client for the same webhook is built.
+     * Entries are dropped once their reset time has passed. Reset times are based on the system clock.
+     * The file can be shared by any amount of clients, it is ignored if a {@link #setSharedRateLimit(File) shared rate-limit}
+     * is configured, which keeps its state on its own.
+     *
+     * <p>Default: no snapshot
+     *
+     * @param  file
+     *         The snapshot file, or null to start with an empty bucket
+     *
+     * @return The current builder, for chaining convenience
+     */
+    @NotNull
+    public WebhookClientBuilder setBucketSnapshot(@Nullable File file) {
+        this.bucketSnapshot = file;
+        return this;
+    }
+
     /**
      * Builds the {@link club.minnced.discord.webhook.WebhookClient}
      * with the current settings
@@ -257,8 +633,8 @@ public class WebhookClientBuilder { //TODO: tests
     @NotNull
     public WebhookClient build() {
         OkHttpClient client = this.client == null ? new OkHttpClient() : this.client;
-        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon);
-        return new WebhookClient(id, token, parseMessage, client, pool, allowedMentions);
+        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon, isVirtualThreads);
+        return configure(new WebhookClient(id, token, parseMessage, client, pool, allowedMentions));
     }
 
     /**
@@ -270,8 +646,8 @@ public class WebhookClientBuilder { //TODO: tests
     @NotNull
     public JDAWebhookClient buildJDA() {
         OkHttpClient client = this.client == null ? new OkHttpClient() : this.client;
-        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon);
-        return new JDAWebhookClient(id, token, parseMessage, client, pool, allowedMentions);
+        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon, isVirtualThreads);
+        return configure(new JDAWebhookClient(id, token, parseMessage, client, pool, allowedMentions));
     }
 
     /**
@@ -283,8 +659,8 @@ public class WebhookClientBuilder { //TODO: tests
     @NotNull
     public D4JWebhookClient buildD4J() {
         OkHttpClient client = this.client == null ? new OkHttpClient() : this.client;
-        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon);
-        return new D4JWebhookClient(id, token, parseMessage, client, pool, allowedMentions);
+        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon, isVirtualThreads);
+        return configure(new D4JWebhookClient(id, token, parseMessage, client, pool, allowedMentions));
     }
 
     /**
@@ -296,26 +672,155 @@ public class WebhookClientBuilder { //TODO: tests
     @NotNull
     public JavacordWebhookClient buildJavacord() {
         OkHttpClient client = this.client == null ? new OkHttpClient() : this.client;
-        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon);
-        return new JavacordWebhookClient(id, token, parseMessage, client, pool, allowedMentions);
+        ScheduledExecutorService pool = this.pool != null ? this.pool : getDefaultPool(id, threadFactory, isDaemon, isVirtualThreads);
+        return configure(new JavacordWebhookClient(id, token, parseMessage, client, pool, allowedMentions));
+    }
+
+    /**
+     * Applies the remaining settings of this builder to the provided client.
+     *
+     * @param  client
+     *         The client to configure
+     * @param  <T>
+     *         The client type
+     *
+     * @throws java.io.UncheckedIOException
+     *         If the configured journal or rate-limit file cannot be opened
+     * @throws java.lang.UnsupportedOperationException
+     *         If a rate-limit file is configured, but the runtime does not support atomic operations on mapped files
+     *
+     * @return The provided client
+     */
+    @NotNull
+    protected <T extends WebhookClient> T configure(@NotNull T client) {
+        client.isAsyncDispatch = isAsyncDispatch || maxInFlight > 1;
+        client.maxInFlight = maxInFlight;
+        client.isCoalescing = isCoalescing;
+        client.isPacing = isPacing;
+        client.retryPolicy = retryPolicy;
+        if (baseUrl != null)
+            client.url = baseUrl + "/webhooks/" + Long.toUnsignedString(id) + "/" + token + "?wait=" + parseMessage;
+        client.queuePermits = queueCapacity > 0 ? new Semaphore(queueCapacity) : null;
+        client.overflowPolicy = overflowPolicy;
+        if (rateLimitFile != null) {
+            try {
+                client.rateLimitFile = RateLimitFile.open(rateLimitFile, rateLimitCapacity);
+            }
+            catch (IOException e) {
+                client.close();
+                throw new UncheckedIOException("Could not open rate-limit file", e);
+            }
+            catch (UnsupportedOperationException e) {
+                client.close();
+                throw e;
+            }
+            // the bucket hash is unknown until the first response
+            client.bucket = client.rateLimitFile.bucket("webhook:" + Long.toUnsignedString(id));
+        }
+        else if (bucketSnapshot != null) {
+            BucketSnapshot.restore(bucketSnapshot, id, client);
+            client.bucketSnapshot = bucketSnapshot;
+        }
+        if (journalDirectory != null) {
+            try {
+                client.journal = MessageJournal.open(journalDirectory, journalSegmentSize);
+            }
+            catch (IOException e) {
+                client.close();
+                throw new UncheckedIOException("Could not open journal", e);
+            }
+            client.replayJournal();
+        }
+        return client;
     }
 
     protected static ScheduledExecutorService getDefaultPool(long id, ThreadFactory factory, boolean isDaemon) {
-        return Executors.newSingleThreadScheduledExecutor(factory == null ? new DefaultWebhookThreadFactory(id, isDaemon) : factory);
+        return getDefaultPool(id, factory, isDaemon, false);
+    }
+
+    protected static ScheduledExecutorService getDefaultPool(long id, ThreadFactory factory, boolean isDaemon, boolean isVirtual) {
+        if (factory == null && isVirtual)
+            factory = newVirtualThreadFactory(id);
+        if (factory == null)
+            return getSharedPool(isDaemon);
+        return Executors.newSingleThreadScheduledExecutor(factory);
+    }
+
+    @Nullable
+    private static ThreadFactory newVirtualThreadFactory(long id) {
+        if (VIRTUAL_THREAD_BUILDER == null) {
+            LOG.warn("Virtual threads are not supported by this runtime, falling back to the shared executor");
+            return null;
+        }
+        try {
+            Object builder = VIRTUAL_THREAD_BUILDER[0].invoke(null);
+            builder = VIRTUAL_THREAD_BUILDER[1].invoke(builder, "Webhook-RateLimit Thread WebhookID: " + id);
+            return (ThreadFactory) VIRTUAL_THREAD_BUILDER[2].invoke(builder);
+        }
+        catch (ReflectiveOperationException e) {
+            LOG.warn("Failed to create virtual thread factory, falling back to the shared executor", e);
+            return null;
+        }
+    }
+
+    // Thread.ofVirtual(), Thread.Builder#name(String), Thread.Builder#factory()
+    @Nullable
+    private static Method[] findVirtualThreadBuilder() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class);
+            Method factory = builderType.getMethod("factory");
+            ofVirtual.invoke(null); // throws if virtual threads are a disabled preview feature
+            return new Method[] { ofVirtual, name, factory };
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    protected static synchronized ScheduledExecutorService getSharedPool(boolean isDaemon) {
+        int index = isDaemon ? 1 : 0;
+        SharedPool pool = SHARED_POOLS[index];
+        if (pool == null)
+            pool = SHARED_POOLS[index] = new SharedPool(sharedPoolSize, isDaemon);
+        return pool;
+    }
+
+    /**
+     * Executor shared by all clients without a dedicated executor.
+     * <br>Clients close their executor on shutdown, which has no effect on this pool.
+     * Idle threads are terminated, so the shared pool does not keep the JVM running once all clients are done.
+     */
+    private static final class SharedPool extends ScheduledThreadPoolExecutor {
+        private SharedPool(int threads, boolean isDaemon) {
+            super(threads, new SharedWebhookThreadFactory(isDaemon));
+            setKeepAliveTime(10, TimeUnit.SECONDS);
+            allowCoreThreadTimeOut(true);
+            setRemoveOnCancelPolicy(true);
+        }
+
+        @Override
+        public void shutdown() {}
+
+        @NotNull
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
     }
 
-    private static final class DefaultWebhookThreadFactory implements ThreadFactory {
-        private final long id;
+    private static final class SharedWebhookThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
         private final boolean isDaemon;
 
-        public DefaultWebhookThreadFactory(long id, boolean isDaemon) {
-            this.id = id;
+        public SharedWebhookThreadFactory(boolean isDaemon) {
             this.isDaemon = isDaemon;
         }
 
         @Override
         public Thread newThread(Runnable r) {
-            final Thread thread = new Thread(r, "Webhook-RateLimit Thread WebhookID: " + id);
+            final Thread thread = new Thread(r, "Webhook-RateLimit Thread " + count.incrementAndGet());
             thread.setDaemon(isDaemon);
             return thread;
         }
@@ -19,7 +19,9 @@ package club.minnced.discord.webhook;
 import club.minnced.discord.webhook.receive.ReadonlyMessage;
 import club.minnced.discord.webhook.send.AllowedMentions;
 import club.minnced.discord.webhook.send.WebhookEmbed;
+import club.minnced.discord.webhook.send.MessagePriority;
 import club.minnced.discord.webhook.send.WebhookMessage;
+import club.minnced.discord.webhook.send.WebhookMessageBuilder;
 import okhttp3.OkHttpClient;
 import okhttp3.RequestBody;
 import org.jetbrains.annotations.NotNull;
@@ -28,15 +30,21 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
  * Collection of webhooks, useful for subscriber pattern.
  * <br>Register several webhooks and broadcast to all of them with a single call.
  *
+ * <p>The cluster is thread-safe, webhooks can be added and removed while other threads broadcast.
+ * Broadcasts iterate a snapshot of the members without locking or copying.
+ *
  * <p>Webhook created by the cluster through {@link #buildWebhook(long, String)}
  * are initialized with defaults specified by
  * <ul>
@@ -48,6 +56,12 @@ import java.util.stream.Collectors;
  */
 public class WebhookCluster implements AutoCloseable { //TODO: tests
     protected final List<WebhookClient> webhooks;
+    // keys with pending messages and the client they are routed to
+    private final Map<Object, Route> routes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    // inverted index of tags, updates of both maps are serialized by the lock of the tag index
+    private final Map<String, Set<WebhookClient>> tagIndex = new ConcurrentHashMap<>();
+    private final Map<WebhookClient, Set<String>> clientTags = new ConcurrentHashMap<>();
     protected OkHttpClient defaultHttpClient;
     protected ScheduledExecutorService defaultPool;
     protected ThreadFactory threadFactory;
@@ -65,27 +79,25 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
      */
     public WebhookCluster(@NotNull Collection<? extends WebhookClient> initialClients) {
         Objects.requireNonNull(initialClients, "List");
-        webhooks = new ArrayList<>(initialClients.size());
-        for (WebhookClient client : initialClients) {
-            addWebhooks(client);
-        }
+        webhooks = new CopyOnWriteArrayList<>();
+        addWebhooks(new ArrayList<>(initialClients));
     }
 
     /**
      * Creates a webhook cluster with the specified capacity.
-     * <br>Note that this capacity can be expanded dynamically by
-     * building/adding more clients.
+     * <br>The clients are kept in a copy-on-write array which always has the exact size of the cluster,
+     * the capacity is only validated for compatibility.
      *
      * @param  initialCapacity
      *         The initial capacity
      *
      * @throws java.lang.IllegalArgumentException
-     *         If the capacity is illegal
-     *
-     * @see    java.util.ArrayList#ArrayList(int)
+     *         If the capacity is negative
      */
     public WebhookCluster(int initialCapacity) {
-        webhooks = new ArrayList<>(initialCapacity);
+        if (initialCapacity < 0)
+            throw new IllegalArgumentException("Illegal capacity: " + initialCapacity);
+        webhooks = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -93,7 +105,7 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
      * <br>This cluster will be empty.
      */
     public WebhookCluster() {
-        webhooks = new ArrayList<>();
+        webhooks = new CopyOnWriteArrayList<>();
     }
 
     // Default builder values
@@ -118,6 +130,8 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     /**
      * Configures the default executor service that will be used to build
      * {@link club.minnced.discord.webhook.WebhookClient} instances.
+     * <br>If neither this nor a {@link #setDefaultThreadFactory(java.util.concurrent.ThreadFactory) thread factory}
+     * is configured, the clients share one executor, see {@link club.minnced.discord.webhook.WebhookClientBuilder#setSharedPoolSize(int)}.
      *
      * @param  executorService
      *         The default executor service
@@ -244,13 +258,7 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public WebhookCluster addWebhooks(@NotNull WebhookClient... clients) {
         Objects.requireNonNull(clients, "Clients");
-        for (WebhookClient client : clients) {
-            Objects.requireNonNull(client, "Client");
-            if (client.isShutdown)
-                throw new IllegalArgumentException("One of the provided WebhookClients has been closed already!");
-            webhooks.add(client);
-        }
-        return this;
+        return addWebhooks(Arrays.asList(clients));
     }
 
     /**
@@ -273,8 +281,9 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
             Objects.requireNonNull(client, "Client");
             if (client.isShutdown)
                 throw new IllegalArgumentException("One of the provided WebhookClients has been closed already!");
-            webhooks.add(client);
         }
+        // a single copy of the array for all clients
+        webhooks.addAll(clients);
         return this;
     }
 
@@ -292,8 +301,7 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public WebhookCluster removeWebhooks(@NotNull WebhookClient... clients) {
         Objects.requireNonNull(clients, "Clients");
-        webhooks.removeAll(Arrays.asList(clients));
-        return this;
+        return removeWebhooks(Arrays.asList(clients));
     }
 
     /**
@@ -310,7 +318,10 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public WebhookCluster removeWebhooks(@NotNull Collection<WebhookClient> clients) {
         Objects.requireNonNull(clients, "Clients");
-        webhooks.removeAll(clients);
+        // removal checks every member against the collection
+        final Collection<WebhookClient> removed = clients instanceof Set ? clients : new HashSet<>(clients);
+        webhooks.removeAll(removed);
+        unindex(removed);
         return this;
     }
 
@@ -328,13 +339,7 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public List<WebhookClient> removeIf(@NotNull Predicate<WebhookClient> predicate) {
         Objects.requireNonNull(predicate, "Predicate");
-        List<WebhookClient> clients = new ArrayList<>();
-        for (WebhookClient client : webhooks) {
-            if (predicate.test(client))
-                clients.add(client);
-        }
-        removeWebhooks(clients);
-        return clients;
+        return remove(predicate);
     }
 
     /**
@@ -351,24 +356,287 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public List<WebhookClient> closeIf(@NotNull Predicate<WebhookClient> predicate) {
         Objects.requireNonNull(predicate, "Filter");
-        List<WebhookClient> clients = new ArrayList<>();
-        for (WebhookClient client : webhooks) {
-            if (predicate.test(client))
-                clients.add(client);
-        }
-        removeWebhooks(clients);
+        List<WebhookClient> clients = remove(predicate);
         clients.forEach(WebhookClient::close);
         return clients;
     }
 
+    // Removes the matching clients in one atomic update, concurrently added clients are not affected
+    @NotNull
+    private List<WebhookClient> remove(@NotNull Predicate<WebhookClient> predicate) {
+        List<WebhookClient> clients = new ArrayList<>();
+        webhooks.removeIf(client -> predicate.test(client) && clients.add(client));
+        unindex(clients);
+        return clients;
+    }
+
     /**
-     * Unmodifiable list of currently registered clients
+     * Unmodifiable view of the currently registered clients.
+     * <br>Iterating the list uses a snapshot of the cluster, which may be modified concurrently.
      *
      * @return List of clients
      */
     @NotNull
     public List<WebhookClient> getWebhooks() {
-        return Collections.unmodifiableList(new ArrayList<>(webhooks));
+        return Collections.unmodifiableList(webhooks);
+    }
+
+    // Tags
+
+    /**
+     * Adds a tag to the provided webhooks, for instance a team, severity or region.
+     * <br>Tagged webhooks can be targeted with {@link #multicast(String, WebhookMessage)},
+     * which only visits the webhooks with the tag instead of testing every webhook of the cluster.
+     * A webhook loses its tags when it is removed from the cluster.
+     *
+     * @param  tag
+     *         The tag
+     * @param  clients
+     *         The clients to tag
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     * @throws java.lang.IllegalArgumentException
+     *         If one of the clients is not part of this cluster
+     *
+     * @return WebhookCluster instance for chaining convenience
+     */
+    @NotNull
+    public WebhookCluster tagWebhooks(@NotNull String tag, @NotNull WebhookClient... clients) {
+        Objects.requireNonNull(tag, "Tag");
+        Objects.requireNonNull(clients, "Clients");
+        synchronized (tagIndex) {
+            for (WebhookClient client : clients) {
+                Objects.requireNonNull(client, "Client");
+                // a concurrent removal unindexes the client once this lock is released
+                if (!clientTags.containsKey(client) && !webhooks.contains(client))
+                    throw new IllegalArgumentException("Cannot tag a WebhookClient which is not part of this cluster");
+                tagIndex.computeIfAbsent(tag, key -> ConcurrentHashMap.newKeySet()).add(client);
+                clientTags.computeIfAbsent(client, key -> ConcurrentHashMap.newKeySet()).add(tag);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Removes a tag from the provided webhooks.
+     *
+     * @param  tag
+     *         The tag
+     * @param  clients
+     *         The clients to untag
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     *
+     * @return WebhookCluster instance for chaining convenience
+     */
+    @NotNull
+    public WebhookCluster untagWebhooks(@NotNull String tag, @NotNull WebhookClient... clients) {
+        Objects.requireNonNull(tag, "Tag");
+        Objects.requireNonNull(clients, "Clients");
+        synchronized (tagIndex) {
+            for (WebhookClient client : clients)
+                untag(Objects.requireNonNull(client, "Client"), tag);
+        }
+        return this;
+    }
+
+    /**
+     * The tags of the provided webhook.
+     *
+     * @param  client
+     *         The client
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     *
+     * @return Unmodifiable set of tags, empty if the client has no tags or is not part of this cluster
+     */
+    @NotNull
+    public Set<String> getTags(@NotNull WebhookClient client) {
+        Objects.requireNonNull(client, "Client");
+        final Set<String> tags = clientTags.get(client);
+        return tags == null ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(tags));
+    }
+
+    /**
+     * The webhooks with the provided tag.
+     *
+     * @param  tag
+     *         The tag
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     *
+     * @return Unmodifiable list of clients, empty if no webhook has this tag
+     */
+    @NotNull
+    public List<WebhookClient> getWebhooksByTag(@NotNull String tag) {
+        Objects.requireNonNull(tag, "Tag");
+        final Set<WebhookClient> clients = tagIndex.get(tag);
+        return clients == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(clients));
+    }
+
+    private void untag(WebhookClient client, String tag) {
+        final Set<WebhookClient> clients = tagIndex.get(tag);
+        if (clients != null && clients.remove(client) && clients.isEmpty())
+            tagIndex.remove(tag);
+        final Set<String> tags = clientTags.get(client);
+        if (tags != null && tags.remove(tag) && tags.isEmpty())
+            clientTags.remove(client);
+    }
+
+    private void unindex(Collection<WebhookClient> removed) {
+        synchronized (tagIndex) {
+            for (WebhookClient client : removed) {
+                final Set<String> tags = clientTags.get(client);
+                if (tags != null) {
+                    for (String tag : new ArrayList<>(tags))
+                        untag(client, tag);
+                }
+            }
+        }
+    }
+
+    // Tagged clients matching all or any of the tags, visiting only the clients of the smallest or of each tag
+    @NotNull
+    private Collection<WebhookClient> resolve(@NotNull Collection<String> tags, boolean matchAll) {
+        Objects.requireNonNull(tags, "Tags");
+        if (!matchAll) {
+            final Set<WebhookClient> union = new LinkedHashSet<>();
+            for (String tag : tags)
+                union.addAll(tagIndex.getOrDefault(Objects.requireNonNull(tag, "Tag"), Collections.emptySet()));
+            return union;
+        }
+        final List<Set<WebhookClient>> sets = new ArrayList<>(tags.size());
+        for (String tag : tags) {
+            final Set<WebhookClient> clients = tagIndex.get(Objects.requireNonNull(tag, "Tag"));
+            if (clients == null)
+                return Collections.emptyList();
+            sets.add(clients);
+        }
+        if (sets.isEmpty())
+            return Collections.emptyList();
+        sets.sort(Comparator.comparingInt(Set::size));
+        final List<WebhookClient> intersection = new ArrayList<>();
+        outer:
+        for (WebhookClient client : sets.get(0)) {
+            for (int i = 1; i < sets.size(); i++) {
+                if (!sets.get(i).contains(client))
+                    continue outer;
+            }
+            intersection.add(client);
+        }
+        return intersection;
+    }
+
+    // Load balancing
+
+    /**
+     * Sends a message to the least loaded client of this cluster.
+     * <br>This treats the cluster as a pool of webhooks in the same channel, which multiplies the throughput
+     * beyond the rate-limit of a single webhook.
+     *
+     * <p>The load of a client is the estimated time until a new message would be sent,
+     * based on its {@link WebhookClient#getPendingCount() pending requests} and its current rate-limit bucket.
+     * Clients with equal load are used in turns. The order of messages is not guaranteed,
+     * use {@link #send(Object, WebhookMessage)} to keep the order of related messages.
+     *
+     * <p><b>This will override the default {@link AllowedMentions} of the client!</b>
+     *
+     * @param  message
+     *         The message to send
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     * @throws java.lang.IllegalStateException
+     *         If the cluster has no open clients
+     *
+     * @return Future for the execution of the selected client
+     */
+    @NotNull
+    public CompletableFuture<ReadonlyMessage> send(@NotNull WebhookMessage message) {
+        Objects.requireNonNull(message, "Message");
+        return new Payload(message).send(selectClient(false));
+    }
+
+    /**
+     * Sends a message to the least loaded client of this cluster, keeping the order of messages with the same key.
+     * <br>While messages of a key are pending, further messages with this key are sent by the same client.
+     * Once all of them are completed, the next message of the key is routed to the least loaded client again.
+     *
+     * <p>The order is only kept by clients which send one request at a time,
+     * clients with {@link WebhookClientBuilder#setPipelining(int) pipelining} are never selected for keyed messages.
+     *
+     * <p><b>This will override the default {@link AllowedMentions} of the client!</b>
+     *
+     * @param  key
+     *         The ordering key, for instance the source of the messages
+     * @param  message
+     *         The message to send
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     * @throws java.lang.IllegalStateException
+     *         If the cluster has no open clients without pipelining
+     *
+     * @return Future for the execution of the selected client
+     *
+     * @see    #send(WebhookMessage)
+     */
+    @NotNull
+    public CompletableFuture<ReadonlyMessage> send(@NotNull Object key, @NotNull WebhookMessage message) {
+        Objects.requireNonNull(key, "Key");
+        Objects.requireNonNull(message, "Message");
+        final Payload payload = new Payload(message);
+        final Route route = routes.compute(key, (k, current) -> {
+            final Route next = current == null || current.client.isShutdown ? new Route(selectClient(true)) : current;
+            next.pending++;
+            return next;
+        });
+        final CompletableFuture<ReadonlyMessage> future;
+        try {
+            future = payload.send(route.client);
+        }
+        catch (RuntimeException e) {
+            release(key, route);
+            throw e;
+        }
+        future.whenComplete((result, error) -> release(key, route));
+        return future;
+    }
+
+    private void release(Object key, Route route) {
+        routes.computeIfPresent(key, (k, current) -> current != route || --current.pending > 0 ? current : null);
+    }
+
+    // Picks the client with the lowest estimated wait, ties are broken by pending requests and then in turns
+    @NotNull
+    private WebhookClient selectClient(boolean sequential) {
+        final Object[] clients = webhooks.toArray();
+        final int offset = clients.length == 0 ? 0 : Math.floorMod(nextIndex.getAndIncrement(), clients.length);
+        WebhookClient best = null;
+        long bestWait = Long.MAX_VALUE;
+        int bestPending = Integer.MAX_VALUE;
+        for (int i = 0; i < clients.length; i++) {
+            final WebhookClient client = (WebhookClient) clients[(offset + i) % clients.length];
+            // several requests in flight can overtake each other
+            if (client.isShutdown || sequential && client.getMaxInFlight() > 1)
+                continue;
+            final int pending = client.getPendingCount();
+            final long wait = client.bucket.estimateWait(pending);
+            if (wait < bestWait || wait == bestWait && pending < bestPending) {
+                best = client;
+                bestWait = wait;
+                bestPending = pending;
+            }
+        }
+        if (best == null && sequential)
+            throw new IllegalStateException("Cannot send keyed messages to a cluster without open clients that disable pipelining");
+        if (best == null)
+            throw new IllegalStateException("Cannot send to a cluster without open clients");
+        return best;
     }
 
     // Broadcasting / Multicasting
@@ -392,15 +660,92 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     public List<CompletableFuture<ReadonlyMessage>> multicast(@NotNull Predicate<WebhookClient> filter, @NotNull WebhookMessage message) {
         Objects.requireNonNull(filter, "Filter");
         Objects.requireNonNull(message, "Message");
-        final RequestBody body = message.getBody();
+        final Payload payload = new Payload(message);
         final List<CompletableFuture<ReadonlyMessage>> callbacks = new ArrayList<>();
         for (WebhookClient client : webhooks) {
             if (filter.test(client))
-                callbacks.add(client.execute(body));
+                callbacks.add(payload.send(client));
         }
         return callbacks;
     }
 
+    /**
+     * Sends a message to all webhooks with the provided tag.
+     *
+     * <p><b>This will override the default {@link AllowedMentions} of the client!</b>
+     *
+     * @param  tag
+     *         The tag of the targeted webhooks
+     * @param  message
+     *         The message to send
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     *
+     * @return List of futures for each client execution
+     *
+     * @see    #tagWebhooks(String, WebhookClient...)
+     */
+    @NotNull
+    public List<CompletableFuture<ReadonlyMessage>> multicast(@NotNull String tag, @NotNull WebhookMessage message) {
+        return multicast(resolve(Collections.singleton(tag), true), message);
+    }
+
+    /**
+     * Sends a message to all webhooks which have all of the provided tags.
+     *
+     * <p><b>This will override the default {@link AllowedMentions} of the client!</b>
+     *
+     * @param  tags
+     *         The tags of the targeted webhooks
+     * @param  message
+     *         The message to send
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     *
+     * @return List of futures for each client execution
+     *
+     * @see    #tagWebhooks(String, WebhookClient...)
+     */
+    @NotNull
+    public List<CompletableFuture<ReadonlyMessage>> multicastAll(@NotNull Collection<String> tags, @NotNull WebhookMessage message) {
+        return multicast(resolve(tags, true), message);
+    }
+
+    /**
+     * Sends a message to all webhooks which have at least one of the provided tags.
+     * <br>Webhooks with several of the tags receive the message once.
+     *
+     * <p><b>This will override the default {@link AllowedMentions} of the client!</b>
+     *
+     * @param  tags
+     *         The tags of the targeted webhooks
+     * @param  message
+     *         The message to send
+     *
+     * @throws java.lang.NullPointerException
+     *         If provided with null
+     *
+     * @return List of futures for each client execution
+     *
+     * @see    #tagWebhooks(String, WebhookClient...)
+     */
+    @NotNull
+    public List<CompletableFuture<ReadonlyMessage>> multicastAny(@NotNull Collection<String> tags, @NotNull WebhookMessage message) {
+        return multicast(resolve(tags, false), message);
+    }
+
+    @NotNull
+    private List<CompletableFuture<ReadonlyMessage>> multicast(@NotNull Collection<WebhookClient> clients, @NotNull WebhookMessage message) {
+        Objects.requireNonNull(message, "Message");
+        final Payload payload = new Payload(message);
+        final List<CompletableFuture<ReadonlyMessage>> callbacks = new ArrayList<>(clients.size());
+        for (WebhookClient client : clients)
+            callbacks.add(payload.send(client));
+        return callbacks;
+    }
+
     /**
      * Sends a message to all registered clients.
      *
@@ -417,16 +762,50 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public List<CompletableFuture<ReadonlyMessage>> broadcast(@NotNull WebhookMessage message) {
         Objects.requireNonNull(message, "Message");
-        RequestBody body = message.getBody();
+        final Payload payload = new Payload(message);
         final List<CompletableFuture<ReadonlyMessage>> callbacks = new ArrayList<>(webhooks.size());
-        for (WebhookClient webhook : webhooks) {
-            callbacks.add(webhook.execute(body));
-            if (message.isFile()) // for files we have to make new data sets
-                body = message.getBody();
-        }
+        for (WebhookClient webhook : webhooks)
+            callbacks.add(payload.send(webhook));
         return callbacks;
     }
 
+    /**
+     * Sends a message to all registered clients, tracking the outcome in a {@link BroadcastResult}.
+     * <br>The result counts successful and failed webhooks as they complete,
+     * and can complete early once a quorum or a certain amount of webhooks received the message.
+     * The individual futures are not retained.
+     * Clients which reject the message, for instance because they are closed, count as failed.
+     *
+     * <p><b>This will override the default {@link AllowedMentions} of the client!</b>
+     *
+     * @param  message
+     *         The message to send
+     * @param  listener
+     *         Optional listener which receives every completion as it arrives
+     *
+     * @throws java.lang.NullPointerException
+     *         If the message is null
+     *
+     * @return The {@link BroadcastResult}
+     */
+    @NotNull
+    public BroadcastResult broadcast(@NotNull WebhookMessage message, @Nullable BroadcastResult.Listener listener) {
+        Objects.requireNonNull(message, "Message");
+        final Payload payload = new Payload(message);
+        final Object[] clients = webhooks.toArray();
+        final BroadcastResult result = new BroadcastResult(clients.length, listener);
+        for (Object element : clients) {
+            final WebhookClient client = (WebhookClient) element;
+            try {
+                payload.send(client).whenComplete((sent, error) -> result.complete(client, sent, error));
+            }
+            catch (RuntimeException e) {
+                result.complete(client, null, e);
+            }
+        }
+        return result;
+    }
+
     /**
      * Sends a message to all registered clients.
      *
@@ -461,9 +840,7 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
      */
     @NotNull
     public List<CompletableFuture<ReadonlyMessage>> broadcast(@NotNull Collection<WebhookEmbed> embeds) {
-        return webhooks.stream()
-                .map(w -> w.send(embeds))
-                .collect(Collectors.toList());
+        return broadcast(WebhookMessage.embeds(embeds));
     }
 
     /**
@@ -480,11 +857,15 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public List<CompletableFuture<ReadonlyMessage>> broadcast(@NotNull String content) {
         Objects.requireNonNull(content, "Content");
-        if (content.length() > 2000)
+        final String trimmed = content.trim();
+        if (trimmed.isEmpty())
+            throw new IllegalArgumentException("Cannot send an empty message");
+        if (trimmed.length() > 2000)
             throw new IllegalArgumentException("Content may not exceed 2000 characters!");
-        return webhooks.stream()
-                .map(w -> w.send(content))
-                .collect(Collectors.toList());
+        return broadcast(mentions -> new WebhookMessageBuilder()
+                .setAllowedMentions(mentions)
+                .setContent(trimmed)
+                .build());
     }
 
     /**
@@ -524,7 +905,7 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public List<CompletableFuture<ReadonlyMessage>> broadcast(@NotNull String fileName, @NotNull File file) {
         Objects.requireNonNull(file, "File");
-        if (file.length() > 10)
+        if (file.length() > 8 << 20)
             throw new IllegalArgumentException("Provided File exceeds the maximum size of 8MB!");
         try {
             return broadcast(fileName, new FileInputStream(file));
@@ -573,11 +954,25 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
     @NotNull
     public List<CompletableFuture<ReadonlyMessage>> broadcast(@NotNull String fileName, @NotNull byte[] data) {
         Objects.requireNonNull(data, "Data");
-        if (data.length > 10)
+        if (data.length > 8 << 20)
             throw new IllegalArgumentException("Provided data exceeds the maximum size of 8MB!");
-        return webhooks.stream()
-                .map(w -> w.send(data, fileName))
-                .collect(Collectors.toList());
+        return broadcast(mentions -> new WebhookMessageBuilder()
+                .setAllowedMentions(mentions)
+                .addFile(fileName, data)
+                .build());
+    }
+
+    // Serializes one message for each distinct set of allowed mentions of the clients, which is usually just one
+    @NotNull
+    private List<CompletableFuture<ReadonlyMessage>> broadcast(@NotNull Function<AllowedMentions, WebhookMessage> factory) {
+        final Map<String, Payload> payloads = new HashMap<>();
+        final List<CompletableFuture<ReadonlyMessage>> callbacks = new ArrayList<>(webhooks.size());
+        for (WebhookClient webhook : webhooks) {
+            final AllowedMentions mentions = webhook.allowedMentions == null ? AllowedMentions.all() : webhook.allowedMentions;
+            final Payload payload = payloads.computeIfAbsent(mentions.toJSONString(), key -> new Payload(factory.apply(mentions)));
+            callbacks.add(payload.send(webhook));
+        }
+        return callbacks;
     }
 
     /**
@@ -587,7 +982,38 @@ public class WebhookCluster implements AutoCloseable { //TODO: tests
      */
     @Override
     public void close() {
-        webhooks.forEach(WebhookClient::close);
-        webhooks.clear();
+        closeIf(client -> true);
+    }
+
+    // The client a key is routed to while it has pending messages, only modified by compute functions of the map
+    private static final class Route {
+        private final WebhookClient client;
+        private int pending;
+
+        private Route(WebhookClient client) {
+            this.client = client;
+        }
+    }
+
+    // A message serialized once and shared by all targeted clients
+    private static final class Payload {
+        private final WebhookMessage message;
+        private final MessagePriority priority;
+        private final RequestBody body;
+
+        private Payload(WebhookMessage message) {
+            this.message = message;
+            this.priority = message.getPriority() == null ? MessagePriority.NORMAL : message.getPriority();
+            try {
+                this.body = IOUtil.serialize(message.getBody());
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private CompletableFuture<ReadonlyMessage> send(WebhookClient client) {
+            return client.execute(body, message, priority);
+        }
     }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook.exception;
+
+import club.minnced.discord.webhook.OverflowPolicy;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Exception used to complete the future of a request that was dropped from a full queue.
+ */
+public class MessageDroppedException extends RuntimeException {
+
+    private final OverflowPolicy policy;
+
+    public MessageDroppedException(@NotNull OverflowPolicy policy) {
+        super("Request was dropped from full queue with policy " + policy);
+        this.policy = policy;
+    }
+
+    /**
+     * The policy which caused the request to be dropped
+     *
+     * @return The {@link club.minnced.discord.webhook.OverflowPolicy}
+     */
+    @NotNull
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook.exception;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Exception used to complete the future of a request that expired before it could be sent.
+ *
+ * @see club.minnced.discord.webhook.send.WebhookMessageBuilder#setTimeToLive(long, java.util.concurrent.TimeUnit)
+ */
+public class MessageExpiredException extends TimeoutException {
+
+    private final long timeToLive;
+
+    public MessageExpiredException(long timeToLive) {
+        super("Request expired after waiting in queue for more than " + timeToLive + " ms");
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * The time to live of the expired request
+     *
+     * @return The time to live in milliseconds
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+}
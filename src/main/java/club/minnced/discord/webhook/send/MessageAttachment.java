@@ -53,4 +53,10 @@ public class MessageAttachment {
     public InputStream getData() {
         return new ByteArrayInputStream(data);
     }
+
+    // the data is shared by all request bodies of this attachment, and never modified
+    @NotNull
+    byte[] getBytes() {
+        return data;
+    }
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook.send;
+
+/**
+ * Priority lane used by a {@link club.minnced.discord.webhook.WebhookClient} to order its queued messages.
+ * <br>Higher lanes are drained first, messages of the same priority keep their order.
+ * Lower lanes are still served periodically while higher lanes are busy, to avoid starving them.
+ *
+ * @see club.minnced.discord.webhook.send.WebhookMessageBuilder#setPriority(MessagePriority)
+ */
+public enum MessagePriority {
+    /** Urgent messages, such as alerts, which should skip ahead of regular traffic */
+    HIGH,
+    /** The default priority */
+    NORMAL,
+    /** Low value messages which can wait for more important traffic */
+    LOW
+}
@@ -48,10 +48,19 @@ public class WebhookMessage {
     protected final boolean isTTS;
     protected final MessageAttachment[] attachments;
     protected final AllowedMentions allowedMentions;
+    protected final MessagePriority priority;
+    protected final long timeToLive;
 
     protected WebhookMessage(final String username, final String avatarUrl, final String content,
                              final List<WebhookEmbed> embeds, final boolean isTTS,
                              final MessageAttachment[] files, AllowedMentions allowedMentions) {
+        this(username, avatarUrl, content, embeds, isTTS, files, allowedMentions, MessagePriority.NORMAL, 0);
+    }
+
+    protected WebhookMessage(final String username, final String avatarUrl, final String content,
+                             final List<WebhookEmbed> embeds, final boolean isTTS,
+                             final MessageAttachment[] files, AllowedMentions allowedMentions,
+                             final MessagePriority priority, final long timeToLive) {
         this.username = username;
         this.avatarUrl = avatarUrl;
         this.content = content;
@@ -59,6 +68,8 @@ public class WebhookMessage {
         this.isTTS = isTTS;
         this.attachments = files;
         this.allowedMentions = allowedMentions;
+        this.priority = priority;
+        this.timeToLive = timeToLive;
     }
 
     /**
@@ -111,6 +122,35 @@ public class WebhookMessage {
         return attachments;
     }
 
+    /**
+     * The mention whitelist for this message
+     *
+     * @return The {@link AllowedMentions}
+     */
+    @NotNull
+    public AllowedMentions getAllowedMentions() {
+        return allowedMentions;
+    }
+
+    /**
+     * The priority lane this message is queued in
+     *
+     * @return The {@link MessagePriority}
+     */
+    @NotNull
+    public MessagePriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * The time this message may wait in the queue of a client before it expires
+     *
+     * @return The time to live in milliseconds, or {@code 0} if this message does not expire
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
     /**
      * Whether this message should use Text-to-Speech (TTS)
      *
@@ -324,7 +364,7 @@ public class WebhookMessage {
                 final MessageAttachment attachment = attachments[i];
                 if (attachment == null)
                     break;
-                builder.addFormDataPart("file" + i, attachment.getName(), new IOUtil.OctetBody(attachment.getData()));
+                builder.addFormDataPart("file" + i, attachment.getName(), new IOUtil.OctetBody(attachment.getBytes()));
             }
             return builder.addFormDataPart("payload_json", json).build();
         }
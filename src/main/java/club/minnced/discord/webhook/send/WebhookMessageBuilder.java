@@ -35,6 +35,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -46,6 +47,8 @@ public class WebhookMessageBuilder {
     protected final List<WebhookEmbed> embeds = new LinkedList<>();
     protected final MessageAttachment[] files = new MessageAttachment[WebhookMessage.MAX_FILES];
     protected AllowedMentions allowedMentions = AllowedMentions.all();
+    protected MessagePriority priority = MessagePriority.NORMAL;
+    protected long timeToLive;
     protected String username, avatarUrl;
     protected boolean isTTS;
     private int fileIndex = 0;
@@ -81,6 +84,8 @@ public class WebhookMessageBuilder {
         username = null;
         avatarUrl = null;
         isTTS = false;
+        priority = MessagePriority.NORMAL;
+        timeToLive = 0;
         return this;
     }
 
@@ -270,6 +275,53 @@ public class WebhookMessageBuilder {
         return this;
     }
 
+    /**
+     * The priority of this message in the queue of a {@link club.minnced.discord.webhook.WebhookClient}.
+     * <br>Messages with a higher priority are sent first, this does not affect the message itself.
+     *
+     * @param  priority
+     *         The {@link MessagePriority}, default {@link MessagePriority#NORMAL NORMAL}
+     *
+     * @throws NullPointerException
+     *         If provided null
+     *
+     * @return This builder for chaining convenience
+     */
+    @NotNull
+    public WebhookMessageBuilder setPriority(@NotNull MessagePriority priority) {
+        this.priority = Objects.requireNonNull(priority, "Priority");
+        return this;
+    }
+
+    /**
+     * The time this message may wait in the queue of a {@link club.minnced.discord.webhook.WebhookClient}
+     * before it is considered useless.
+     * <br>Expired messages are skipped without using a request, their futures fail with a
+     * {@link club.minnced.discord.webhook.exception.MessageExpiredException MessageExpiredException}.
+     * The time starts counting when the message is sent, so the same message can be sent multiple times.
+     *
+     * @param  time
+     *         The time to live, or {@code 0} to never expire
+     * @param  unit
+     *         The {@link TimeUnit} of the provided time
+     *
+     * @throws IllegalArgumentException
+     *         If the provided time is negative
+     * @throws NullPointerException
+     *         If the provided unit is null
+     *
+     * @return This builder for chaining convenience
+     */
+    @NotNull
+    public WebhookMessageBuilder setTimeToLive(long time, @NotNull TimeUnit unit) {
+        Objects.requireNonNull(unit, "TimeUnit");
+        if (time < 0)
+            throw new IllegalArgumentException("Time to live may not be negative");
+        // never round a short time to live down to infinity
+        this.timeToLive = time == 0 ? 0 : Math.max(1, unit.toMillis(time));
+        return this;
+    }
+
     /**
      * Adds the provided file as an attachment to this message.
      * <br>A single message can have up to {@value WebhookMessage#MAX_FILES} attachments.
@@ -388,7 +440,7 @@ public class WebhookMessageBuilder {
         if (isEmpty())
             throw new IllegalStateException("Cannot build an empty message!");
         return new WebhookMessage(username, avatarUrl, content.toString(), embeds, isTTS,
-                fileIndex == 0 ? null : Arrays.copyOf(files, fileIndex), allowedMentions);
+                fileIndex == 0 ? null : Arrays.copyOf(files, fileIndex), allowedMentions, priority, timeToLive);
     }
 
 
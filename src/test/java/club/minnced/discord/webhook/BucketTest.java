@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import okhttp3.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BucketTest {
+    private static Response response(int code, Headers headers) {
+        return new Response.Builder()
+                .request(new Request.Builder().url("https://discord.com/api/webhooks/1/token").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("OK")
+                .headers(headers)
+                .body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+                .build();
+    }
+
+    @Test
+    public void resetAfterWithMonotonicClock() {
+        AtomicLong clock = new AtomicLong(-TimeUnit.SECONDS.toNanos(10)); // nanoTime may be negative
+        WebhookClient.Bucket bucket = new WebhookClient.Bucket(clock::get);
+        Assert.assertFalse(bucket.isRateLimit());
+
+        bucket.update(response(200, Headers.of(
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "1.250",
+                // a wall clock reset far in the past must not matter
+                "X-RateLimit-Reset", "1",
+                "Date", "Thu, 01 Jan 1970 00:00:00 GMT")));
+        Assert.assertTrue(bucket.isRateLimit());
+        Assert.assertEquals(1250, bucket.retryAfter());
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        Assert.assertEquals(250, bucket.retryAfter());
+        Assert.assertTrue(bucket.isRateLimit());
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(250));
+        Assert.assertFalse(bucket.isRateLimit());
+        Assert.assertEquals(5, bucket.remaining());
+    }
+
+    @Test
+    public void resetAfterRoundsUp() {
+        AtomicLong clock = new AtomicLong();
+        WebhookClient.Bucket bucket = new WebhookClient.Bucket(clock::get);
+        bucket.update(response(200, Headers.of(
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "0.0004")));
+        Assert.assertEquals(1, bucket.retryAfter());
+        clock.addAndGet(400_000);
+        Assert.assertFalse(bucket.isRateLimit());
+    }
+
+    @Test
+    public void pacingSpreadsRemainingUses() {
+        AtomicLong clock = new AtomicLong();
+        WebhookClient.Bucket bucket = new WebhookClient.Bucket(clock::get);
+        Assert.assertEquals(0, bucket.pace());
+        Assert.assertTrue(bucket.tryAcquire(true));
+
+        bucket.update(response(200, Headers.of(
+                "X-RateLimit-Remaining", "4",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "2")));
+        bucket.release(true);
+        Assert.assertEquals(500, bucket.pace());
+        Assert.assertFalse(bucket.tryAcquire(true));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertEquals(0, bucket.pace());
+        Assert.assertTrue(bucket.tryAcquire(true));
+        bucket.update(response(200, Headers.of(
+                "X-RateLimit-Remaining", "3",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "1.5")));
+        bucket.release(true);
+        Assert.assertEquals(500, bucket.pace());
+
+        // after the reset, the full window is divided by the limit
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(2));
+        Assert.assertEquals(0, bucket.pace());
+        Assert.assertTrue(bucket.tryAcquire(true));
+        Assert.assertEquals(400, bucket.pace());
+    }
+
+    @Test
+    public void failedAcquireKeepsPacingSlot() {
+        AtomicLong clock = new AtomicLong();
+        WebhookClient.Bucket bucket = new WebhookClient.Bucket(clock::get);
+        bucket.update(response(200, Headers.of(
+                "X-RateLimit-Remaining", "1",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "2")));
+        // another client sharing the bucket takes the last request
+        Assert.assertTrue(bucket.tryAcquire(false));
+        Assert.assertEquals(0, bucket.pace());
+        Assert.assertFalse(bucket.tryAcquire(true));
+
+        // the request failed without a response, the paced request can be sent right away
+        bucket.release(false);
+        Assert.assertEquals(0, bucket.pace());
+        Assert.assertTrue(bucket.tryAcquire(true));
+        Assert.assertEquals(2000, bucket.pace());
+    }
+
+    @Test
+    public void unusedSharedBucketsAreDropped() {
+        WebhookClient.Bucket first = WebhookClient.Bucket.shared("bucket-test-unused");
+        WebhookClient.Bucket second = WebhookClient.Bucket.shared("bucket-test-unused");
+        Assert.assertSame(first, second);
+
+        WebhookClient.Bucket.unshare(first);
+        Assert.assertSame("Bucket is still used", first, WebhookClient.Bucket.shared("bucket-test-unused"));
+        WebhookClient.Bucket.unshare(first);
+        WebhookClient.Bucket.unshare(first);
+        Assert.assertNotSame(first, WebhookClient.Bucket.shared("bucket-test-unused"));
+    }
+
+    @Test
+    public void limitedSharedBucketsAreKept() {
+        WebhookClient.Bucket bucket = WebhookClient.Bucket.shared("bucket-test-limited");
+        bucket.update(response(200, Headers.of(
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "60")));
+        WebhookClient.Bucket.unshare(bucket);
+        // a client created before the reset still has to wait for it
+        WebhookClient.Bucket next = WebhookClient.Bucket.shared("bucket-test-limited");
+        Assert.assertSame(bucket, next);
+        Assert.assertTrue(next.isRateLimit());
+        WebhookClient.Bucket.unshare(next);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package club.minnced.discord.webhook;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class RateLimitFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sizedForCapacity() {
+        Assert.assertEquals(4, RateLimitFile.tableSize(1));
+        Assert.assertEquals(8192, RateLimitFile.tableSize(1500));
+        Assert.assertEquals(8192, RateLimitFile.tableSize(RateLimitFile.DEFAULT_CAPACITY));
+    }
+
+    @Test
+    public void existingFileKeepsSize() throws Exception {
+        File file = new File(folder.getRoot(), "ratelimit.bin");
+        RateLimitFile.open(file, 1);
+        long size = file.length();
+        Assert.assertEquals(64 + 4 * 32, size);
+
+        // a second name for the same file gets its own mapping, like another process would
+        File otherProcess = new File(folder.getRoot(), "ratelimit-link.bin");
+        Files.createLink(otherProcess.toPath(), file.toPath());
+        RateLimitFile other = RateLimitFile.open(otherProcess, 100);
+        Assert.assertEquals(size, file.length());
+        for (int i = 0; i < 4; i++)
+            Assert.assertNotNull(other.slot("bucket" + i));
+        Assert.assertNull(other.slot("full"));
+    }
+
+    @Test
+    public void reclaimsIdleSlots() throws Exception {
+        RateLimitFile file = RateLimitFile.open(new File(folder.getRoot(), "ratelimit.bin"), 1);
+        RateLimitFile.Slot[] slots = new RateLimitFile.Slot[4];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = file.slot("bucket" + i);
+            slots[i].update(4, 5, 1);
+        }
+        Assert.assertNull(file.slot("late"));
+
+        // every bucket is reset and unused for the default window
+        Thread.sleep(1100);
+        RateLimitFile.Slot late = file.slot("late");
+        Assert.assertNotNull(late);
+        late.rateLimit(10_000);
+        Assert.assertTrue(late.retryAfter() > 0);
+        // the previous owner moves to another idle slot and does not see the new state
+        for (RateLimitFile.Slot slot : slots) {
+            Assert.assertTrue(slot.retryAfter() <= 0);
+            Assert.assertTrue(slot.tryAcquire());
+        }
+        Assert.assertTrue(late.retryAfter() > 0);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the webhook endpoint of discord, for rate-limit and load tests.
+ * <br>Each webhook has its own bucket unless they share one with {@link #setSharedBucket(String)}, requests beyond the bucket or the global limit are answered with a 429.
+ * Clients can be pointed at this server with {@code WebhookClientBuilder#setBaseUrl(getBaseUrl())}.
+ */
+public class FakeDiscord implements AutoCloseable {
+    private static final Pattern WEBHOOK_PATH = Pattern.compile("^/api/webhooks/(\\d+)/([\\w-]+)(?:\\?wait=(\\w+))?$");
+    private static final Pattern PAYLOAD_JSON = Pattern.compile("name=\"payload_json\"\r\n(?:[^\r\n]+\r\n)*\r\n(.*?)\r\n--", Pattern.DOTALL);
+
+    // the server logs every request, loggers are only weakly referenced by their manager
+    private static final Logger SERVER_LOG = Logger.getLogger(MockWebServer.class.getName());
+
+    static {
+        SERVER_LOG.setLevel(Level.WARNING);
+    }
+
+    // bucket hashes are unique per server, rate-limit buckets are shared by all clients of the JVM
+    private static final AtomicInteger SERVERS = new AtomicInteger();
+    private static final Pattern FILE_NAME = Pattern.compile("name=\"file\\d+\"; filename=\"([^\"]+)\"");
+
+    private final MockWebServer server = new MockWebServer();
+    private final String bucketPrefix = "fake" + SERVERS.incrementAndGet() + "-";
+    private final Map<Long, Bucket> buckets = new HashMap<>();
+    private final Map<Long, List<JSONObject>> payloads = new HashMap<>();
+    private final AtomicLong snowflakes = new AtomicLong(1);
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger rateLimited = new AtomicInteger();
+    private final AtomicInteger globalRateLimited = new AtomicInteger();
+
+    private int bucketLimit = 5;
+    private long bucketWindow = 2000;
+    private int globalLimit = Integer.MAX_VALUE;
+    private long globalWindow = 1000;
+    private String sharedBucket;
+    private long globalReset;
+    private int globalRemaining;
+    private long latency;
+    private boolean gzip;
+    private int failures;
+    private int failureCode;
+
+    public FakeDiscord() {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return handle(request);
+            }
+        });
+    }
+
+    public FakeDiscord setBucket(int limit, long window, TimeUnit unit) {
+        this.bucketLimit = limit;
+        this.bucketWindow = unit.toMillis(window);
+        return this;
+    }
+
+    /** Puts all webhooks into one bucket with the provided hash, like webhooks of the same channel */
+    public FakeDiscord setSharedBucket(String hash) {
+        this.sharedBucket = hash;
+        return this;
+    }
+
+    public FakeDiscord setGlobalLimit(int limit, long window, TimeUnit unit) {
+        this.globalLimit = limit;
+        this.globalWindow = unit.toMillis(window);
+        return this;
+    }
+
+    public FakeDiscord setLatency(long latency, TimeUnit unit) {
+        this.latency = unit.toMillis(latency);
+        return this;
+    }
+
+    public FakeDiscord setGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    /** Answers the next requests with the provided status, or drops their connection if the code is 0 */
+    public synchronized FakeDiscord failNext(int times, int code) {
+        this.failures = times;
+        this.failureCode = code;
+        return this;
+    }
+
+    public FakeDiscord start() throws IOException {
+        server.start();
+        return this;
+    }
+
+    public String getBaseUrl() {
+        return server.url("/api").toString();
+    }
+
+    /** Amount of requests received, including rate-limited requests */
+    public int getReceived() {
+        return received.get();
+    }
+
+    /** Amount of requests answered with a 429 of a webhook bucket */
+    public int getRateLimited() {
+        return rateLimited.get();
+    }
+
+    /** Amount of requests answered with a global 429 */
+    public int getGlobalRateLimited() {
+        return globalRateLimited.get();
+    }
+
+    /** Contents of the accepted messages of a webhook, in the order they were received */
+    public synchronized List<String> getMessages(long webhookId) {
+        List<String> messages = new ArrayList<>();
+        for (JSONObject payload : getPayloads(webhookId))
+            messages.add(payload.optString("content", ""));
+        return messages;
+    }
+
+    /** Payloads of the accepted messages of a webhook, with the names of their files in {@code "files"} */
+    public synchronized List<JSONObject> getPayloads(long webhookId) {
+        return new ArrayList<>(payloads.getOrDefault(webhookId, Collections.emptyList()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    private synchronized MockResponse handle(RecordedRequest request) {
+        received.incrementAndGet();
+        Matcher matcher = WEBHOOK_PATH.matcher(request.getPath());
+        if (!"POST".equals(request.getMethod()) || !matcher.matches())
+            return error(404, "{\"message\":\"404: Not Found\",\"code\":0}");
+        long webhookId = Long.parseUnsignedLong(matcher.group(1));
+        boolean wait = Boolean.parseBoolean(matcher.group(3));
+        long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        if (failures > 0) {
+            failures--;
+            if (failureCode == 0)
+                return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+            return error(failureCode, "{\"message\":\"Bad Gateway\",\"code\":0}");
+        }
+
+        Bucket bucket = buckets.computeIfAbsent(sharedBucket == null ? webhookId : 0, id -> new Bucket());
+        if (bucket.reset <= now) {
+            bucket.reset = now + bucketWindow;
+            bucket.remaining = bucketLimit;
+        }
+        if (globalReset <= now) {
+            globalReset = now + globalWindow;
+            globalRemaining = globalLimit;
+        }
+
+        if (globalRemaining <= 0) {
+            globalRateLimited.incrementAndGet();
+            return rateLimit(webhookId, bucket, now, globalReset - now, true);
+        }
+        if (bucket.remaining <= 0) {
+            rateLimited.incrementAndGet();
+            return rateLimit(webhookId, bucket, now, bucket.reset - now, false);
+        }
+        globalRemaining--;
+        bucket.remaining--;
+
+        JSONObject payload = parsePayload(request);
+        String content = payload.optString("content", "");
+        payloads.computeIfAbsent(webhookId, id -> new ArrayList<>()).add(payload);
+        MockResponse response = withBucket(new MockResponse(), webhookId, bucket, now);
+        if (!wait)
+            return response.setResponseCode(204);
+
+        JSONObject author = new JSONObject()
+                .put("id", Long.toUnsignedString(webhookId))
+                .put("username", payload.optString("username", "Fake Webhook"))
+                .put("discriminator", "0000")
+                .put("avatar", JSONObject.NULL)
+                .put("bot", true);
+        JSONObject message = new JSONObject()
+                .put("id", Long.toUnsignedString(snowflakes.getAndIncrement()))
+                .put("channel_id", "1")
+                .put("author", author)
+                .put("content", content)
+                .put("tts", payload.optBoolean("tts"))
+                .put("mention_everyone", false)
+                .put("mentions", new JSONArray())
+                .put("mention_roles", new JSONArray())
+                .put("embeds", payload.has("embeds") ? payload.getJSONArray("embeds") : new JSONArray())
+                .put("attachments", new JSONArray());
+        return withBody(response.setResponseCode(200), message.toString());
+    }
+
+    private MockResponse rateLimit(long webhookId, Bucket bucket, long now, long retryAfter, boolean global) {
+        JSONObject body = new JSONObject()
+                .put("message", "You are being rate limited.")
+                .put("retry_after", retryAfter)
+                .put("global", global);
+        MockResponse response = withBucket(new MockResponse(), webhookId, bucket, now)
+                .setResponseCode(429)
+                .setHeader("X-RateLimit-Scope", global ? "global" : "user");
+        if (global)
+            response.setHeader("X-RateLimit-Global", "true");
+        return withBody(response, body.toString());
+    }
+
+    private MockResponse withBucket(MockResponse response, long webhookId, Bucket bucket, long now) {
+        long resetAfter = bucket.reset - now;
+        long resetEpoch = System.currentTimeMillis() + resetAfter;
+        return response
+                .setHeadersDelay(latency, TimeUnit.MILLISECONDS)
+                .setHeader("X-RateLimit-Bucket", sharedBucket == null ? bucketPrefix + Long.toHexString(webhookId) : sharedBucket)
+                .setHeader("X-RateLimit-Limit", bucketLimit)
+                .setHeader("X-RateLimit-Remaining", bucket.remaining)
+                .setHeader("X-RateLimit-Reset", String.format(Locale.ROOT, "%.3f", resetEpoch / 1000.0))
+                .setHeader("X-RateLimit-Reset-After", String.format(Locale.ROOT, "%.3f", resetAfter / 1000.0));
+    }
+
+    private MockResponse withBody(MockResponse response, String json) {
+        response.setHeader("Content-Type", "application/json");
+        if (!gzip)
+            return response.setBody(json);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return response
+                .setHeader("Content-Encoding", "gzip")
+                .setBody(new Buffer().write(bytes.toByteArray()));
+    }
+
+    private MockResponse error(int code, String json) {
+        return withBody(new MockResponse().setResponseCode(code), json);
+    }
+
+    private static JSONObject parsePayload(RecordedRequest request) {
+        String body = request.getBody().readUtf8();
+        String type = request.getHeader("Content-Type");
+        if (type != null && type.startsWith("multipart/form-data")) {
+            Matcher matcher = PAYLOAD_JSON.matcher(body);
+            JSONObject payload = matcher.find() ? new JSONObject(matcher.group(1)) : new JSONObject();
+            JSONArray files = new JSONArray();
+            Matcher file = FILE_NAME.matcher(body);
+            while (file.find())
+                files.put(file.group(1));
+            return payload.put("files", files);
+        }
+        return body.isEmpty() ? new JSONObject() : new JSONObject(body);
+    }
+
+    private static class Bucket {
+        private long reset;
+        private int remaining;
+    }
+}
@@ -114,6 +114,10 @@ public class IOTestUtil {
         return new FakeCall(req, json, useGzip);
     }
 
+    public static Call forgeCall(Request req, int code, Headers headers, String json) {
+        return new FakeCall(req, json, false, code, headers);
+    }
+
     private static Pattern MULTIPART_TYPE_PATTERN = Pattern.compile("^multipart/form-data; boundary=(.+)$");
 
     private static String getBoundary(RequestBody body) {
@@ -140,11 +144,19 @@ public class IOTestUtil {
         private final Request req;
         private final String jsonResponse;
         private final boolean isGzip;
+        private final int code;
+        private final Headers headers;
 
         public FakeCall(Request req, String jsonResponse, boolean isGzip) {
+            this(req, jsonResponse, isGzip, 200, Headers.of("X-RateLimit-Remaining", "199", "X-RateLimit-Limit", "200"));
+        }
+
+        public FakeCall(Request req, String jsonResponse, boolean isGzip, int code, Headers headers) {
             this.req = req;
             this.jsonResponse = jsonResponse;
             this.isGzip = isGzip;
+            this.code = code;
+            this.headers = headers;
         }
 
         @Override
@@ -162,10 +174,9 @@ public class IOTestUtil {
             Response.Builder builder = new Response.Builder()
                     .request(req)
                     .protocol(Protocol.HTTP_1_1)
-                    .code(200)
-                    .message("OK")
-                    .header("X-RateLimit-Remaining", "199")
-                    .header("X-RateLimit-Limit", "200");
+                    .code(code)
+                    .message(code == 200 ? "OK" : "Error")
+                    .headers(headers);
 
             if(isGzip) {
                 builder.header("content-encoding", "gzip");
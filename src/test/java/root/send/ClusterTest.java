@@ -0,0 +1,353 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.BroadcastResult;
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.WebhookCluster;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import club.minnced.discord.webhook.send.AllowedMentions;
+import club.minnced.discord.webhook.send.WebhookEmbedBuilder;
+import club.minnced.discord.webhook.send.WebhookMessage;
+import club.minnced.discord.webhook.send.WebhookMessageBuilder;
+import okhttp3.OkHttpClient;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import root.FakeDiscord;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ClusterTest {
+    private static final int WEBHOOKS = 4;
+
+    private final FakeDiscord discord = new FakeDiscord();
+    private final WebhookCluster cluster = new WebhookCluster();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void cleanup() throws IOException {
+        cluster.close();
+        discord.close();
+    }
+
+    private WebhookClient newClient(long id, AllowedMentions mentions) {
+        WebhookClient client = new WebhookClientBuilder(id, "token")
+                .setBaseUrl(discord.getBaseUrl())
+                .setAllowedMentions(mentions)
+                .build();
+        cluster.addWebhooks(client);
+        return client;
+    }
+
+    private static void await(List<CompletableFuture<ReadonlyMessage>> futures) throws Exception {
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void broadcastContent() throws Exception {
+        discord.start();
+        for (int i = 1; i <= WEBHOOKS; i++)
+            newClient(i, i % 2 == 0 ? AllowedMentions.none() : AllowedMentions.all());
+        List<CompletableFuture<ReadonlyMessage>> futures = cluster.broadcast("  Hello  ");
+        Assert.assertEquals(WEBHOOKS, futures.size());
+        await(futures);
+        for (int i = 1; i <= WEBHOOKS; i++) {
+            List<JSONObject> payloads = discord.getPayloads(i);
+            Assert.assertEquals(1, payloads.size());
+            Assert.assertEquals("Hello", payloads.get(0).getString("content"));
+            // every client keeps its own allowed mentions
+            int parsed = payloads.get(0).getJSONObject("allowed_mentions").getJSONArray("parse").length();
+            Assert.assertEquals(i % 2 == 0 ? 0 : 3, parsed);
+        }
+    }
+
+    @Test
+    public void broadcastFile() throws Exception {
+        discord.start();
+        for (int i = 1; i <= WEBHOOKS; i++)
+            newClient(i, AllowedMentions.all());
+        await(cluster.broadcast("cat.png", "meow, larger than ten bytes".getBytes(StandardCharsets.UTF_8)));
+        for (int i = 1; i <= WEBHOOKS; i++) {
+            List<JSONObject> payloads = discord.getPayloads(i);
+            Assert.assertEquals(1, payloads.size());
+            Assert.assertEquals("cat.png", payloads.get(0).getJSONArray("files").getString(0));
+        }
+    }
+
+    @Test
+    public void multicastFiltered() throws Exception {
+        discord.start();
+        for (int i = 1; i <= WEBHOOKS; i++)
+            newClient(i, AllowedMentions.all());
+        await(cluster.multicast(client -> client.getId() % 2 == 0, WebhookMessage.embeds(new WebhookEmbedBuilder().setDescription("Hi").build())));
+        for (int i = 1; i <= WEBHOOKS; i++)
+            Assert.assertEquals(i % 2 == 0 ? 1 : 0, discord.getPayloads(i).size());
+    }
+
+    @Test
+    public void concurrentMembership() throws Exception {
+        OkHttpClient http = new OkHttpClient();
+        for (int i = 1; i <= WEBHOOKS; i++)
+            cluster.addWebhooks(new WebhookClientBuilder(i, "token").setHttpClient(http).build());
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            try {
+                while (running.get()) {
+                    // iterates all members without sending
+                    Assert.assertTrue(cluster.multicast(client -> false, WebhookMessage.embeds(new WebhookEmbedBuilder().setDescription("Hi").build())).isEmpty());
+                    for (WebhookClient client : cluster.getWebhooks())
+                        Assert.assertNotNull(client);
+                }
+            }
+            catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 200; i++) {
+                WebhookClient client = new WebhookClientBuilder(100 + i, "token").setHttpClient(http).build();
+                cluster.addWebhooks(client);
+                cluster.removeWebhooks(client);
+                client.close();
+            }
+        }
+        finally {
+            running.set(false);
+            reader.join();
+        }
+        Assert.assertNull(failure.get());
+        Assert.assertEquals(WEBHOOKS, cluster.getWebhooks().size());
+        Assert.assertEquals(2, cluster.closeIf(client -> client.getId() % 2 == 0).size());
+        Assert.assertEquals(WEBHOOKS - 2, cluster.getWebhooks().size());
+    }
+
+    @Test
+    public void sendToLeastLoaded() throws Exception {
+        discord.start();
+        // webhook 1 has exhausted its bucket for the next minute
+        File snapshot = folder.newFile("buckets.json");
+        Files.write(snapshot.toPath(), ("{\"1\":{\"limit\":1,\"remaining\":0,\"window\":60000,\"reset\":"
+                + (System.currentTimeMillis() + 60000) + "}}").getBytes(StandardCharsets.UTF_8));
+        // nothing is sent before every message has been routed, the pending counts are exact
+        CountDownLatch routed = new CountDownLatch(1);
+        try {
+            for (int i = 1; i <= 3; i++) {
+                ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+                pool.submit(() -> {
+                    routed.await();
+                    return null;
+                });
+                cluster.addWebhooks(new WebhookClientBuilder(i, "token")
+                        .setBaseUrl(discord.getBaseUrl())
+                        .setExecutorService(pool)
+                        .setBucketSnapshot(snapshot)
+                        .build());
+            }
+            List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+            for (int i = 0; i < 6; i++)
+                futures.add(cluster.send(WebhookMessage.embeds(new WebhookEmbedBuilder().setDescription("Message " + i).build())));
+            for (WebhookClient client : cluster.getWebhooks())
+                Assert.assertEquals("Messages should avoid the exhausted bucket and be spread evenly",
+                        client.getId() == 1 ? 0 : 3, client.getPendingCount());
+            routed.countDown();
+            await(futures);
+        }
+        finally {
+            routed.countDown();
+        }
+        Assert.assertTrue(discord.getPayloads(1).isEmpty());
+        Assert.assertEquals(3, discord.getPayloads(2).size());
+        Assert.assertEquals(3, discord.getPayloads(3).size());
+    }
+
+    @Test
+    public void sendKeepsKeyOrder() throws Exception {
+        discord.setBucket(1, 20, TimeUnit.MILLISECONDS).start();
+        for (int i = 1; i <= 3; i++)
+            newClient(i, AllowedMentions.all());
+        List<CompletableFuture<ReadonlyMessage>> ordered = new ArrayList<>();
+        List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ordered.add(cluster.send("ordered", new WebhookMessageBuilder().setContent("Ordered " + i).build()));
+            futures.add(cluster.send(new WebhookMessageBuilder().setContent("Other " + i).build()));
+        }
+        futures.addAll(ordered);
+        await(futures);
+
+        // the fake server assigns increasing ids in the order it receives messages
+        long previous = 0;
+        for (int i = 0; i < ordered.size(); i++) {
+            ReadonlyMessage message = ordered.get(i).get();
+            Assert.assertEquals("Ordered " + i, message.getContent());
+            Assert.assertTrue("Messages of a key should arrive in order", message.getId() > previous);
+            previous = message.getId();
+        }
+    }
+
+    @Test
+    public void sendWithKeySkipsPipelinedClients() throws Exception {
+        discord.start();
+        WebhookClient pipelined = new WebhookClientBuilder(1, "token")
+                .setBaseUrl(discord.getBaseUrl())
+                .setPipelining(4)
+                .build();
+        cluster.addWebhooks(pipelined);
+        try {
+            cluster.send("ordered", new WebhookMessageBuilder().setContent("Hello").build());
+            Assert.fail("Keyed messages should not be sent by a pipelined client");
+        }
+        catch (IllegalStateException expected) {
+            // the only client may reorder messages
+        }
+
+        newClient(2, AllowedMentions.all());
+        List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            futures.add(cluster.send("ordered", new WebhookMessageBuilder().setContent("Ordered " + i).build()));
+        await(futures);
+        Assert.assertTrue(discord.getPayloads(1).isEmpty());
+        Assert.assertEquals(5, discord.getPayloads(2).size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sendToEmptyCluster() {
+        cluster.send(new WebhookMessageBuilder().setContent("Hello").build());
+    }
+
+    @Test
+    public void multicastByTag() throws Exception {
+        discord.start();
+        WebhookClient[] clients = new WebhookClient[4];
+        for (int i = 0; i < clients.length; i++)
+            clients[i] = newClient(i + 1, AllowedMentions.all());
+        cluster.tagWebhooks("eu", clients[0], clients[1])
+               .tagWebhooks("us", clients[2], clients[3])
+               .tagWebhooks("high", clients[1], clients[2]);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("eu", "high")), cluster.getTags(clients[1]));
+
+        WebhookMessage message = new WebhookMessageBuilder().setContent("Alert").build();
+        List<CompletableFuture<ReadonlyMessage>> all = cluster.multicastAll(Arrays.asList("eu", "high"), message);
+        List<CompletableFuture<ReadonlyMessage>> any = cluster.multicastAny(Arrays.asList("eu", "high"), message);
+        List<CompletableFuture<ReadonlyMessage>> us = cluster.multicast("us", message);
+        Assert.assertEquals(1, all.size());
+        Assert.assertEquals(3, any.size());
+        Assert.assertEquals(2, us.size());
+        Assert.assertTrue(cluster.multicast("unknown", message).isEmpty());
+        Assert.assertTrue(cluster.multicastAll(Arrays.asList("eu", "unknown"), message).isEmpty());
+        await(all);
+        await(any);
+        await(us);
+
+        // 1 -> any, 2 -> all + any, 3 -> any + us, 4 -> us
+        int[] expected = {1, 2, 2, 1};
+        for (int i = 0; i < clients.length; i++)
+            Assert.assertEquals(expected[i], discord.getPayloads(i + 1).size());
+
+        cluster.untagWebhooks("high", clients[2]);
+        Assert.assertEquals(Collections.singletonList(clients[1]), cluster.getWebhooksByTag("high"));
+        cluster.removeWebhooks(clients[1]);
+        Assert.assertTrue(cluster.getWebhooksByTag("high").isEmpty());
+        Assert.assertTrue(cluster.getTags(clients[1]).isEmpty());
+        clients[1].close();
+    }
+
+    @Test
+    public void broadcastResult() throws Exception {
+        discord.start();
+        for (int i = 1; i <= WEBHOOKS; i++)
+            newClient(i, AllowedMentions.all());
+        // one closed client and one failed request
+        WebhookClient closed = newClient(WEBHOOKS + 1, AllowedMentions.all());
+        closed.close();
+        discord.failNext(1, 404);
+
+        AtomicInteger completions = new AtomicInteger();
+        BroadcastResult result = cluster.broadcast(new WebhookMessageBuilder().setContent("Hi").build(),
+                (id, message, error) -> completions.incrementAndGet());
+        Assert.assertEquals(WEBHOOKS + 1, result.getTotal());
+        Assert.assertSame(result, result.whenQuorum().get(10, TimeUnit.SECONDS));
+        Assert.assertTrue(result.getSucceeded() >= 3);
+
+        // all webhooks can no longer succeed, so this completes once both failures are known
+        result.whenSucceeded(WEBHOOKS + 1).get(10, TimeUnit.SECONDS);
+        result.whenDone().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(WEBHOOKS - 1, result.getSucceeded());
+        Assert.assertEquals(2, result.getFailed());
+        Assert.assertEquals(0, result.getPending());
+        Assert.assertEquals(WEBHOOKS + 1, completions.get());
+        Assert.assertTrue(result.getFailures().get(closed) instanceof RejectedExecutionException);
+        Assert.assertEquals(WEBHOOKS, discord.getReceived());
+    }
+
+    @Test
+    public void broadcastResultEmpty() throws Exception {
+        BroadcastResult result = cluster.broadcast(new WebhookMessageBuilder().setContent("Hi").build(), null);
+        Assert.assertEquals(0, result.getTotal());
+        Assert.assertTrue(result.whenQuorum().isDone());
+        Assert.assertTrue(result.whenSucceeded(0).isDone());
+        Assert.assertTrue(result.whenDone().isDone());
+    }
+
+    @Test
+    public void broadcastResultSameWebhook() throws Exception {
+        discord.start();
+        newClient(1, AllowedMentions.all());
+        // a second client for the same webhook, which is already closed
+        WebhookClient closed = newClient(1, AllowedMentions.none());
+        closed.close();
+        discord.failNext(1, 404);
+        BroadcastResult result = cluster.broadcast(new WebhookMessageBuilder().setContent("Hi").build(), null);
+        result.whenDone().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(2, result.getFailed());
+        Assert.assertEquals(2, result.getFailures().size());
+        Assert.assertTrue(result.getFailures().get(closed) instanceof RejectedExecutionException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tagNonMember() {
+        OkHttpClient http = new OkHttpClient();
+        try (WebhookClient client = new WebhookClientBuilder(1, "token").setHttpClient(http).build()) {
+            cluster.tagWebhooks("eu", client);
+        }
+    }
+}
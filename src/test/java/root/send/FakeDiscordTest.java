@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import club.minnced.discord.webhook.send.WebhookEmbedBuilder;
+import club.minnced.discord.webhook.send.WebhookMessageBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import root.FakeDiscord;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class FakeDiscordTest {
+    private static final int WEBHOOKS = 3;
+    private static final int MESSAGES = 12;
+
+    private final FakeDiscord discord = new FakeDiscord();
+    private final List<WebhookClient> clients = new ArrayList<>();
+
+    @After
+    public void cleanup() throws IOException, InterruptedException {
+        clients.forEach(WebhookClient::close);
+        discord.close();
+        // the global rate-limit is shared with every other test in this JVM
+        Thread.sleep(200);
+    }
+
+    private WebhookClient newClient(WebhookClientBuilder builder) {
+        WebhookClient client = builder.setBaseUrl(discord.getBaseUrl()).build();
+        clients.add(client);
+        return client;
+    }
+
+    private void sendAll(boolean wait) throws Exception {
+        sendAll(wait, false);
+    }
+
+    private void sendAll(boolean wait, boolean async) throws Exception {
+        List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+        for (int i = 1; i <= WEBHOOKS; i++) {
+            WebhookClient client = newClient(new WebhookClientBuilder(i, "token").setWait(wait).setAsyncDispatch(async));
+            for (int j = 0; j < MESSAGES; j++)
+                futures.add(client.send("Message " + j));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            ReadonlyMessage message = futures.get(i).get(10, TimeUnit.SECONDS);
+            if (wait)
+                Assert.assertEquals("Message " + i % MESSAGES, message.getContent());
+        }
+        for (int i = 1; i <= WEBHOOKS; i++) {
+            List<String> received = discord.getMessages(i);
+            Assert.assertEquals(MESSAGES, received.size());
+            for (int j = 0; j < MESSAGES; j++)
+                Assert.assertEquals("Message " + j, received.get(j));
+        }
+    }
+
+    @Test
+    public void respectsBuckets() throws Exception {
+        discord.setBucket(5, 100, TimeUnit.MILLISECONDS).setGzip(true).start();
+        sendAll(true);
+        Assert.assertEquals(0, discord.getRateLimited());
+        Assert.assertEquals(WEBHOOKS * MESSAGES, discord.getReceived());
+    }
+
+    @Test
+    public void asyncDispatchKeepsOrder() throws Exception {
+        discord.setBucket(5, 100, TimeUnit.MILLISECONDS).setLatency(5, TimeUnit.MILLISECONDS).start();
+        sendAll(true, true);
+        Assert.assertEquals(0, discord.getRateLimited());
+        Assert.assertEquals(WEBHOOKS * MESSAGES, discord.getReceived());
+    }
+
+    @Test
+    public void recoversFromGlobalRateLimit() throws Exception {
+        discord.setBucket(5, 100, TimeUnit.MILLISECONDS)
+               .setGlobalLimit(4, 50, TimeUnit.MILLISECONDS)
+               .start();
+        sendAll(false);
+        Assert.assertTrue(discord.getGlobalRateLimited() > 0);
+    }
+
+    @Test
+    public void respectsSharedBucket() throws Exception {
+        discord.setBucket(4, 100, TimeUnit.MILLISECONDS).setSharedBucket("fake-shared-bucket").start();
+        List<WebhookClient> shared = new ArrayList<>();
+        for (int i = 1; i <= WEBHOOKS; i++) {
+            WebhookClient client = newClient(new WebhookClientBuilder(i, "token")
+                    .setWait(false)
+                    .setAsyncDispatch(true)
+                    .setPipelining(4));
+            // the first response tells the client which bucket it shares
+            client.send("Hello").get(10, TimeUnit.SECONDS);
+            shared.add(client);
+        }
+
+        List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+        for (int j = 0; j < MESSAGES; j++) {
+            for (WebhookClient client : shared)
+                futures.add(client.send("Message " + j));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(0, discord.getRateLimited());
+        Assert.assertEquals(WEBHOOKS * (MESSAGES + 1), discord.getReceived());
+    }
+
+    @Test
+    public void parsesMessage() throws Exception {
+        discord.start();
+        WebhookClient client = newClient(new WebhookClientBuilder(1, "token"));
+        ReadonlyMessage message = client.send(new WebhookMessageBuilder()
+                .setContent("Hello")
+                .setUsername("Tester")
+                .addEmbeds(new WebhookEmbedBuilder().setDescription("World").build())
+                .addFile("test.txt", new byte[]{1, 2, 3})
+                .build()).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals("Hello", message.getContent());
+        Assert.assertEquals("Tester", message.getAuthor().getName());
+        Assert.assertEquals("World", message.getEmbeds().get(0).getDescription());
+    }
+}
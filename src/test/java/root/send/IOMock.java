@@ -22,6 +22,10 @@ import club.minnced.discord.webhook.send.WebhookEmbedBuilder;
 import club.minnced.discord.webhook.send.WebhookMessage;
 import club.minnced.discord.webhook.send.WebhookMessageBuilder;
 import okhttp3.*;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -31,6 +35,16 @@ import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.mockito.Mockito.*;
 
 public class IOMock {
@@ -85,4 +99,136 @@ public class IOMock {
         Request req = requestCaptor.getValue();
         Assert.assertSame(body, req.body());
     }
+
+    @Test
+    public void asyncDispatch() throws Exception {
+        Call call = mock(Call.class);
+        when(httpClient.newCall(any())).thenReturn(call);
+        WebhookClient asyncClient = new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setAsyncDispatch(true)
+                .build();
+        try {
+            asyncClient.send("Hello World");
+
+            verify(call, timeout(1000)).enqueue(any());
+            verify(call, never()).execute();
+        }
+        finally {
+            asyncClient.close();
+        }
+    }
+
+    @Test
+    public void asyncDispatchSurvivesFailedCallback() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Call call = mock(Call.class);
+        when(httpClient.newCall(any())).thenReturn(call);
+        doAnswer(invocation -> {
+            Callback callback = invocation.getArgument(0);
+            Response.Builder response = new Response.Builder()
+                    .request(new Request.Builder().url("https://discord.com").build())
+                    .protocol(Protocol.HTTP_1_1)
+                    .message("Error");
+            if (calls.getAndIncrement() == 0)
+                response.code(400).body(brokenBody());
+            else
+                response.code(204).body(ResponseBody.create(null, ""));
+            // okhttp runs callbacks on its dispatcher threads
+            new Thread(() -> {
+                try {
+                    callback.onResponse(call, response.build());
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).start();
+            return null;
+        }).when(call).enqueue(any());
+        WebhookClient asyncClient = new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setAsyncDispatch(true)
+                .build();
+        try {
+            CompletableFuture<?> failed = asyncClient.send("Hello");
+            try {
+                failed.get(1, TimeUnit.SECONDS);
+                Assert.fail("Expected the broken response to fail the request");
+            }
+            catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            // the failed callback has to free its in-flight slot for the next request
+            asyncClient.send("World").get(1, TimeUnit.SECONDS);
+            Assert.assertEquals(2, calls.get());
+        }
+        finally {
+            asyncClient.close();
+        }
+    }
+
+    private static ResponseBody brokenBody() {
+        return new ResponseBody() {
+            @Override
+            public MediaType contentType() {
+                return null;
+            }
+
+            @Override
+            public long contentLength() {
+                return -1;
+            }
+
+            @Override
+            public BufferedSource source() {
+                return Okio.buffer(new ForwardingSource(Okio.source(new ByteArrayInputStream(new byte[0]))) {
+                    @Override
+                    public long read(Buffer sink, long byteCount) {
+                        throw new IllegalStateException("broken body");
+                    }
+                });
+            }
+        };
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        AtomicReference<Thread> executor = new AtomicReference<>();
+        CountDownLatch executed = new CountDownLatch(1);
+        Call call = mock(Call.class);
+        when(httpClient.newCall(any())).thenReturn(call);
+        when(call.execute()).thenAnswer(invocation -> {
+            executor.compareAndSet(null, Thread.currentThread());
+            executed.countDown();
+            throw new IOException("mock");
+        });
+        WebhookClient virtualClient = new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setVirtualThreads(true)
+                .build();
+        try {
+            virtualClient.send("Hello World");
+
+            Assert.assertTrue("Request was not executed", executed.await(1, TimeUnit.SECONDS));
+            Thread thread = executor.get();
+            if (WebhookClientBuilder.isVirtualThreadsSupported()) {
+                Assert.assertTrue("Request did not run on a virtual thread", isVirtual(thread));
+                Assert.assertEquals("Webhook-RateLimit Thread WebhookID: 1234", thread.getName());
+            }
+            else {
+                // falls back to the shared executor on runtimes without virtual threads
+                Assert.assertTrue("Unexpected thread " + thread.getName(), thread.getName().matches("Webhook-RateLimit Thread \\d+"));
+            }
+        }
+        finally {
+            virtualClient.close();
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) throws ReflectiveOperationException {
+        return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
 }
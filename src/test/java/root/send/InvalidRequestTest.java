@@ -0,0 +1,145 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.InvalidRequestBreaker;
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import root.IOTestUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class InvalidRequestTest {
+    @Mock
+    private OkHttpClient httpClient;
+
+    private final List<InvalidRequestBreaker.State> transitions = new ArrayList<>();
+    private int base;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+        // the breaker is shared with every other test in this JVM
+        base = InvalidRequestBreaker.getInvalidRequests();
+        InvalidRequestBreaker.setThresholds(base + 2, base + 4);
+        InvalidRequestBreaker.setListener((previous, current, invalidRequests) -> transitions.add(current));
+    }
+
+    @After
+    public void reset() {
+        InvalidRequestBreaker.setListener(null);
+        InvalidRequestBreaker.setThresholds(InvalidRequestBreaker.INVALID_REQUEST_LIMIT / 2, InvalidRequestBreaker.INVALID_REQUEST_LIMIT * 9 / 10);
+        Assert.assertEquals(InvalidRequestBreaker.State.CLOSED, InvalidRequestBreaker.getState());
+    }
+
+    private WebhookClient newClient(long id, ScheduledExecutorService pool) {
+        return new WebhookClientBuilder(id, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .build();
+    }
+
+    private void respond(int code, Headers headers) {
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), code, headers, "{}"));
+    }
+
+    private CompletableFuture<ReadonlyMessage> sendAndDrain(WebhookClient client, ScheduledExecutorService pool, int drains) {
+        CompletableFuture<ReadonlyMessage> future = client.send("Hello");
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool, times(drains)).schedule(drain.capture(), anyLong(), any(TimeUnit.class));
+        drain.getValue().run();
+        return future;
+    }
+
+    @Test
+    public void shedFailingWebhook() throws InterruptedException {
+        respond(403, Headers.of());
+        ScheduledExecutorService pool = mock(ScheduledExecutorService.class);
+        WebhookClient failing = newClient(1, pool);
+        sendAndDrain(failing, pool, 1);
+        Assert.assertEquals(InvalidRequestBreaker.State.CLOSED, InvalidRequestBreaker.getState());
+        sendAndDrain(failing, pool, 2);
+        Assert.assertEquals(InvalidRequestBreaker.State.THROTTLED, InvalidRequestBreaker.getState());
+        Assert.assertEquals(base + 2, InvalidRequestBreaker.getInvalidRequests());
+
+        CompletableFuture<ReadonlyMessage> shed = sendAndDrain(failing, pool, 3);
+        try {
+            shed.get();
+            Assert.fail("Request of failing webhook should be shed");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        verify(httpClient, times(2)).newCall(any());
+
+        // other webhooks keep sending
+        respond(200, Headers.of());
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        sendAndDrain(newClient(2, otherPool), otherPool, 1);
+        verify(httpClient, times(3)).newCall(any());
+        Assert.assertEquals(1, transitions.size());
+        Assert.assertEquals(InvalidRequestBreaker.State.THROTTLED, transitions.get(0));
+    }
+
+    @Test
+    public void openDefersAllClients() {
+        // 429s of a shared rate-limit are not counted
+        respond(429, Headers.of("Retry-After", "1", "X-RateLimit-Scope", "shared"));
+        ScheduledExecutorService pool = mock(ScheduledExecutorService.class);
+        sendAndDrain(newClient(1, pool), pool, 1);
+        Assert.assertEquals(base, InvalidRequestBreaker.getInvalidRequests());
+
+        respond(401, Headers.of());
+        for (int i = 0; i < 4; i++) {
+            ScheduledExecutorService failingPool = mock(ScheduledExecutorService.class);
+            sendAndDrain(newClient(2, failingPool), failingPool, 1);
+        }
+        Assert.assertEquals(InvalidRequestBreaker.State.OPEN, InvalidRequestBreaker.getState());
+        Assert.assertTrue(InvalidRequestBreaker.retryAfter() > 0);
+
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        sendAndDrain(newClient(3, otherPool), otherPool, 1);
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(otherPool, times(2)).schedule(any(Runnable.class), delay.capture(), any(TimeUnit.class));
+        Assert.assertTrue("Client should wait for the breaker, delay " + delay.getValue(), delay.getValue() > 0);
+        verify(httpClient, times(5)).newCall(any());
+
+        Assert.assertEquals(2, transitions.size());
+        Assert.assertEquals(InvalidRequestBreaker.State.OPEN, transitions.get(1));
+    }
+}
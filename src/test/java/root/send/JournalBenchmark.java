@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import okhttp3.Call;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import root.IOTestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of queueing requests with and without a journal.
+ * <br>The executor only drains the queue after the measurement, so only the cost of sending is measured.
+ *
+ * <p>Run with: {@code java root.send.JournalBenchmark [messages]}
+ */
+public class JournalBenchmark {
+    private static final Headers RESPONSE_HEADERS = Headers.of(
+            "X-RateLimit-Remaining", String.valueOf(Integer.MAX_VALUE),
+            "X-RateLimit-Limit", String.valueOf(Integer.MAX_VALUE),
+            "X-RateLimit-Reset-After", "1");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        for (int round = 0; round < 3; round++) {
+            final boolean warmup = round == 0;
+            report("in-memory", run(null, messages), messages, warmup);
+            final File directory = Files.createTempDirectory("journal-benchmark").toFile();
+            try {
+                report("journal", run(directory, messages), messages, warmup);
+            }
+            finally {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files)
+                        Files.deleteIfExists(file.toPath());
+                }
+                Files.deleteIfExists(directory.toPath());
+            }
+        }
+    }
+
+    private static long run(File journal, int messages) throws InterruptedException {
+        // the executor is held until the measurement is over, afterwards the drain sends everything and closes the journal
+        final CountDownLatch measured = new CountDownLatch(1);
+        final ScheduledExecutorService pool = Executors.newSingleThreadScheduledExecutor();
+        pool.submit(() -> {
+            measured.await();
+            return null;
+        });
+        final WebhookClient client = new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(new OkHttpClient() {
+                    @Override
+                    public Call newCall(Request request) {
+                        return IOTestUtil.forgeCall(request, 200, RESPONSE_HEADERS, "");
+                    }
+                })
+                .setExecutorService(pool)
+                .setJournal(journal)
+                .build();
+        try {
+            final long start = System.nanoTime();
+            for (int i = 0; i < messages; i++)
+                client.send("Benchmark message number " + i);
+            return System.nanoTime() - start;
+        }
+        finally {
+            client.close();
+            measured.countDown();
+            if (!pool.awaitTermination(1, TimeUnit.MINUTES))
+                throw new IllegalStateException("Client did not drain its queue");
+        }
+    }
+
+    private static void report(String name, long nanos, int messages, boolean warmup) {
+        if (warmup)
+            return;
+        System.out.printf("%-10s %,12d msg/s %8.2f us/msg%n",
+                name, (long) (messages / (nanos / 1e9)), nanos / 1e3 / messages);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import club.minnced.discord.webhook.send.MessagePriority;
+import club.minnced.discord.webhook.send.WebhookMessageBuilder;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import root.IOTestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class JournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private OkHttpClient httpClient;
+
+    @Mock
+    private ScheduledExecutorService pool;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    private WebhookClientBuilder newBuilder(File journal) {
+        return new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setJournal(journal);
+    }
+
+    private static File[] segments(File directory) {
+        return directory.listFiles((dir, name) -> name.endsWith(".log"));
+    }
+
+    @Test
+    public void replayAfterCrash() throws Exception {
+        File crashed = folder.newFolder("crashed");
+        WebhookClient client = newBuilder(crashed).setExecutorService(pool).build();
+        client.send("first");
+        client.send(new WebhookMessageBuilder()
+                .setContent("attachment")
+                .addFile("data.txt", "file content".getBytes(StandardCharsets.UTF_8))
+                .build());
+        client.send("urgent", MessagePriority.HIGH);
+
+        // the process dies with its queue on disk, copy what was written so far
+        File restarted = folder.newFolder("restarted");
+        for (File segment : segments(crashed))
+            Files.copy(segment.toPath(), new File(restarted, segment.getName()).toPath());
+
+        ArgumentCaptor<Request> requests = ArgumentCaptor.forClass(Request.class);
+        when(httpClient.newCall(requests.capture())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), "{}", false));
+        ScheduledExecutorService restartedPool = mock(ScheduledExecutorService.class);
+        newBuilder(restarted).setExecutorService(restartedPool).build();
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(restartedPool).schedule(drain.capture(), anyLong(), any(TimeUnit.class));
+        drain.getValue().run();
+
+        List<Request> sent = requests.getAllValues();
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals("urgent", new JSONObject(IOTestUtil.readRequestBody(sent.get(0).body())).getString("content"));
+        Assert.assertEquals("first", new JSONObject(IOTestUtil.readRequestBody(sent.get(1).body())).getString("content"));
+        Map<String, Object> multipart = IOTestUtil.parseMultipart(sent.get(2).body());
+        IOTestUtil.MultiPartFile file = (IOTestUtil.MultiPartFile) multipart.get("file0");
+        Assert.assertEquals("data.txt", file.filename);
+        Assert.assertEquals("file content", new String(file.content, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void compactAcknowledgedSegments() throws Exception {
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), "{}", false));
+        File directory = folder.newFolder("journal");
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        WebhookClient client = new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setExecutorService(executor)
+                .setJournal(directory, 1024)
+                .build();
+
+        List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            futures.add(client.send("Message " + i));
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        // acknowledgements may still be written after the futures completed
+        long deadline = System.currentTimeMillis() + 10000;
+        while (segments(directory).length > 1 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(1, segments(directory).length);
+
+        client.close();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, segments(directory).length);
+    }
+
+    @Test
+    public void cancelledRequestsNotReplayed() throws IOException {
+        File directory = folder.newFolder("journal");
+        WebhookClient client = newBuilder(directory).setExecutorService(pool).build();
+        client.send("cancelled").cancel(false);
+
+        File restarted = folder.newFolder("restarted");
+        for (File segment : segments(directory))
+            Files.copy(segment.toPath(), new File(restarted, segment.getName()).toPath());
+        ScheduledExecutorService restartedPool = mock(ScheduledExecutorService.class);
+        newBuilder(restarted).setExecutorService(restartedPool).build();
+        verifyZeroInteractions(restartedPool);
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void directoryInUse() throws IOException {
+        File directory = folder.newFolder("journal");
+        newBuilder(directory).setExecutorService(pool).build();
+        newBuilder(directory).setExecutorService(pool).build();
+    }
+}
@@ -31,6 +31,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import root.IOTestUtil;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -253,4 +254,25 @@ public class MessageTest {
         );
     }
 
+
+    @Test
+    public void multipartReplayable() throws IOException {
+        byte[] data = "Hello World!".getBytes(StandardCharsets.UTF_8);
+        RequestBody body = builder
+                .addFile("bytes.txt", data)
+                .addFile("stream.txt", new ByteArrayInputStream(data))
+                .build().getBody();
+        Assert.assertNotEquals("Body length should be known", -1, body.contentLength());
+
+        String first = IOTestUtil.readRequestBody(body);
+        String second = IOTestUtil.readRequestBody(body);
+        Assert.assertEquals("Body should be identical when written again", first, second);
+        Assert.assertEquals(body.contentLength(), first.getBytes(StandardCharsets.UTF_8).length);
+        Map<String, Object> multiPart = IOTestUtil.parseMultipart(body);
+        Assert.assertArrayEquals(data, ((IOTestUtil.MultiPartFile) multiPart.get("file1")).content);
+
+        IOUtil.OctetBody stream = new IOUtil.OctetBody(new ByteArrayInputStream(data));
+        Assert.assertEquals("Hello World!", IOTestUtil.readRequestBody(stream));
+        Assert.assertEquals("Hello World!", IOTestUtil.readRequestBody(stream));
+    }
 }
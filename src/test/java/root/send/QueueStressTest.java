@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import okhttp3.*;
+import okio.Timeout;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import root.IOTestUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueueStressTest {
+    private static final int PRODUCERS = 64;
+    private static final int MESSAGES = 100;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final ExecutorService callbacks = Executors.newFixedThreadPool(4);
+
+    @After
+    public void cleanup() {
+        callbacks.shutdownNow();
+    }
+
+    private Response respond(Request request) throws IOException {
+        requests.incrementAndGet();
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        try {
+            Thread.yield();
+            return IOTestUtil.forgeCall(request, "{}", false).execute();
+        }
+        finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private OkHttpClient http(boolean async) {
+        return new OkHttpClient() {
+            @Override
+            public Call newCall(Request request) {
+                return new StressCall(request, async);
+            }
+        };
+    }
+
+    private void stress(WebhookClient client) throws Exception {
+        List<CompletableFuture<ReadonlyMessage>> futures = new CopyOnWriteArrayList<>();
+        CyclicBarrier start = new CyclicBarrier(PRODUCERS);
+        List<Thread> producers = new ArrayList<>(PRODUCERS);
+        for (int i = 0; i < PRODUCERS; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < MESSAGES; j++)
+                        futures.add(client.send("Message " + j));
+                }
+                catch (InterruptedException | BrokenBarrierException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : producers)
+            thread.join();
+
+        // a lost wakeup would leave futures incomplete
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        Assert.assertEquals(PRODUCERS * MESSAGES, futures.size());
+        Assert.assertEquals("Every request should be executed exactly once", PRODUCERS * MESSAGES, requests.get());
+        client.close();
+    }
+
+    @Test
+    public void sequentialDrain() throws Exception {
+        stress(new WebhookClientBuilder(1234, "token").setWait(false).setHttpClient(http(false)).build());
+        Assert.assertEquals("Only one drain should execute requests at a time", 1, maxActive.get());
+    }
+
+    @Test
+    public void pipelinedDrain() throws Exception {
+        stress(new WebhookClientBuilder(1234, "token").setWait(false).setHttpClient(http(true)).setPipelining(3).build());
+        Assert.assertTrue("Pipeline should not exceed its limit", maxActive.get() <= 3);
+    }
+
+    private class StressCall implements Call {
+        private final Request request;
+        private final boolean async;
+
+        private StressCall(Request request, boolean async) {
+            this.request = request;
+            this.async = async;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            if (async)
+                throw new AssertionError("Blocking call in async mode");
+            return respond(request);
+        }
+
+        @Override
+        public void enqueue(Callback callback) {
+            if (!async)
+                throw new AssertionError("Async call in blocking mode");
+            // completes on a separate pool, like the okhttp dispatcher
+            callbacks.execute(() -> {
+                try {
+                    callback.onResponse(this, respond(request));
+                }
+                catch (IOException e) {
+                    callback.onFailure(this, e);
+                }
+            });
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public void cancel() {}
+
+        @Override
+        public boolean isExecuted() {
+            return false;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public Call clone() {
+            return new StressCall(request, async);
+        }
+    }
+}
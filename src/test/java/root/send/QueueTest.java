@@ -0,0 +1,276 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.OverflowPolicy;
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.exception.MessageDroppedException;
+import club.minnced.discord.webhook.exception.MessageExpiredException;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import club.minnced.discord.webhook.send.MessagePriority;
+import club.minnced.discord.webhook.send.WebhookEmbedBuilder;
+import club.minnced.discord.webhook.send.WebhookMessageBuilder;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import root.IOTestUtil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class QueueTest {
+    @Mock
+    private OkHttpClient httpClient;
+
+    @Mock
+    private ScheduledExecutorService pool; // never drains the queue
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    private WebhookClient newClient(int capacity, OverflowPolicy policy) {
+        return new WebhookClientBuilder(1234, "token")
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .setQueueCapacity(capacity, policy)
+                .build();
+    }
+
+    private static Throwable cause(CompletableFuture<ReadonlyMessage> future) {
+        Assert.assertTrue("Future should be completed", future.isDone());
+        try {
+            future.get();
+            throw new AssertionError("Future should have failed");
+        }
+        catch (ExecutionException e) {
+            return e.getCause();
+        }
+        catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void rejectWhenFull() {
+        WebhookClient client = newClient(2, OverflowPolicy.REJECT);
+        client.send("1");
+        client.send("2");
+        client.send("3");
+    }
+
+    @Test
+    public void dropOldest() {
+        WebhookClient client = newClient(2, OverflowPolicy.DROP_OLDEST);
+        CompletableFuture<ReadonlyMessage> first = client.send("1");
+        CompletableFuture<ReadonlyMessage> second = client.send("2");
+        CompletableFuture<ReadonlyMessage> third = client.send("3");
+
+        Assert.assertTrue(cause(first) instanceof MessageDroppedException);
+        Assert.assertFalse(second.isDone());
+        Assert.assertFalse(third.isDone());
+        Assert.assertEquals(1, client.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewest() {
+        WebhookClient client = newClient(1, OverflowPolicy.DROP_NEWEST);
+        CompletableFuture<ReadonlyMessage> first = client.send("1");
+        CompletableFuture<ReadonlyMessage> second = client.send("2");
+
+        Assert.assertFalse(first.isDone());
+        Assert.assertEquals(OverflowPolicy.DROP_NEWEST, ((MessageDroppedException) cause(second)).getPolicy());
+        Assert.assertEquals(1, client.getDroppedCount());
+    }
+
+    @Test
+    public void cancelReleasesCapacity() {
+        WebhookClient client = newClient(1, OverflowPolicy.REJECT);
+        client.send("1").cancel(false);
+        client.send("2");
+        Assert.assertEquals(0, client.getDroppedCount());
+    }
+
+    private Runnable captureDrain() {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool).schedule(captor.capture(), anyLong(), any(TimeUnit.class));
+        return captor.getValue();
+    }
+
+    @Test
+    public void coalesceMessages() throws IOException {
+        ArgumentCaptor<Request> requests = ArgumentCaptor.forClass(Request.class);
+        when(httpClient.newCall(requests.capture())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), "{}", false));
+        WebhookClient client = new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .setCoalescing(true)
+                .build();
+
+        CompletableFuture<ReadonlyMessage> first = client.send("Hello");
+        CompletableFuture<ReadonlyMessage> second = client.send(new WebhookMessageBuilder().setContent("World").build());
+        CompletableFuture<ReadonlyMessage> third = client.send(new WebhookEmbedBuilder().setDescription("embed").build());
+        CompletableFuture<ReadonlyMessage> fourth = client.send("After embed");
+        captureDrain().run();
+
+        Assert.assertEquals(2, requests.getAllValues().size());
+        JSONObject merged = new JSONObject(IOTestUtil.readRequestBody(requests.getAllValues().get(0).body()));
+        Assert.assertEquals("Hello\nWorld", merged.getString("content"));
+        Assert.assertEquals(1, merged.getJSONArray("embeds").length());
+        JSONObject last = new JSONObject(IOTestUtil.readRequestBody(requests.getAllValues().get(1).body()));
+        Assert.assertEquals("After embed", last.getString("content"));
+        Assert.assertTrue(first.isDone() && second.isDone() && third.isDone() && fourth.isDone());
+    }
+
+    @Test
+    public void pipelining() {
+        Call call = mock(Call.class);
+        when(httpClient.newCall(any())).thenReturn(call);
+        WebhookClient client = new WebhookClientBuilder(1234, "token")
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .setPipelining(3)
+                .build();
+
+        for (int i = 0; i < 5; i++)
+            client.send("Message " + i);
+        captureDrain().run();
+
+        Assert.assertTrue(client.isAsyncDispatch());
+        verify(call, times(3)).enqueue(any());
+    }
+
+    private List<String> sentContents(ArgumentCaptor<Request> requests) throws IOException {
+        List<String> contents = new ArrayList<>();
+        for (Request request : requests.getAllValues())
+            contents.add(new JSONObject(IOTestUtil.readRequestBody(request.body())).getString("content"));
+        return contents;
+    }
+
+    private WebhookClient newPriorityClient(ArgumentCaptor<Request> requests) {
+        when(httpClient.newCall(requests.capture())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), "{}", false));
+        // run drains that yield to other clients right away
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(pool).execute(any());
+        return new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .build();
+    }
+
+    @Test
+    public void priorityLanes() throws IOException {
+        ArgumentCaptor<Request> requests = ArgumentCaptor.forClass(Request.class);
+        WebhookClient client = newPriorityClient(requests);
+
+        client.send("low 1", MessagePriority.LOW);
+        client.send("normal 1");
+        client.send(new WebhookMessageBuilder().setContent("high 1").setPriority(MessagePriority.HIGH).build());
+        client.send("low 2", MessagePriority.LOW);
+        client.send("high 2", MessagePriority.HIGH);
+        client.send("normal 2", MessagePriority.NORMAL);
+        captureDrain().run();
+
+        List<String> expected = new ArrayList<>();
+        Collections.addAll(expected, "high 1", "high 2", "normal 1", "normal 2", "low 1", "low 2");
+        Assert.assertEquals(expected, sentContents(requests));
+    }
+
+    @Test
+    public void lowPriorityNotStarved() throws IOException {
+        ArgumentCaptor<Request> requests = ArgumentCaptor.forClass(Request.class);
+        WebhookClient client = newPriorityClient(requests);
+
+        client.send("low", MessagePriority.LOW);
+        for (int i = 0; i < 50; i++)
+            client.send("high " + i, MessagePriority.HIGH);
+        captureDrain().run();
+
+        List<String> contents = sentContents(requests);
+        Assert.assertEquals(51, contents.size());
+        int index = contents.indexOf("low");
+        Assert.assertTrue("Low priority message was served at " + index, index > 0 && index < 50);
+        // the remaining lane keeps its order
+        contents.remove(index);
+        for (int i = 0; i < 50; i++)
+            Assert.assertEquals("high " + i, contents.get(i));
+    }
+
+    @Test
+    public void dropOldestKeepsHigherPriority() {
+        WebhookClient client = newClient(2, OverflowPolicy.DROP_OLDEST);
+        CompletableFuture<ReadonlyMessage> high = client.send("high", MessagePriority.HIGH);
+        CompletableFuture<ReadonlyMessage> low = client.send("low", MessagePriority.LOW);
+        CompletableFuture<ReadonlyMessage> normal = client.send("normal");
+        CompletableFuture<ReadonlyMessage> rejected = client.send("low 2", MessagePriority.LOW);
+
+        Assert.assertFalse(high.isDone());
+        Assert.assertTrue(cause(low) instanceof MessageDroppedException);
+        Assert.assertFalse(normal.isDone());
+        // only lower or equal priority requests are dropped in favor of a new one
+        Assert.assertTrue(cause(rejected) instanceof MessageDroppedException);
+        Assert.assertEquals(2, client.getDroppedCount());
+    }
+
+    @Test
+    public void expiredMessagesSkipped() throws Exception {
+        ArgumentCaptor<Request> requests = ArgumentCaptor.forClass(Request.class);
+        WebhookClient client = newPriorityClient(requests);
+
+        CompletableFuture<ReadonlyMessage> expired = client.send(new WebhookMessageBuilder()
+                .setContent("CPU high")
+                .setTimeToLive(1, TimeUnit.MILLISECONDS)
+                .build());
+        // the deadline of the expired message was taken before this point
+        long queued = System.nanoTime();
+        CompletableFuture<ReadonlyMessage> alive = client.send(new WebhookMessageBuilder()
+                .setContent("Still relevant")
+                .setTimeToLive(1, TimeUnit.MINUTES)
+                .build());
+        // the mocked pool never runs the drain on its own, it only runs below once the deadline has certainly passed
+        while (System.nanoTime() - queued < TimeUnit.MILLISECONDS.toNanos(1))
+            Thread.yield();
+        captureDrain().run();
+
+        Throwable cause = cause(expired);
+        Assert.assertTrue(cause instanceof TimeoutException);
+        Assert.assertEquals(1, ((MessageExpiredException) cause).getTimeToLive());
+        Assert.assertTrue(alive.isDone() && !alive.isCompletedExceptionally());
+        Assert.assertEquals(Collections.singletonList("Still relevant"), sentContents(requests));
+        Assert.assertEquals(1, client.getExpiredCount());
+    }
+}
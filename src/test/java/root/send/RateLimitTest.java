@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import okhttp3.*;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import root.IOTestUtil;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class RateLimitTest {
+    private static final long GLOBAL_RETRY_AFTER = 200;
+
+    @Mock
+    private OkHttpClient httpClient;
+
+    @Mock
+    private ScheduledExecutorService pool;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @After
+    public void awaitGlobalReset() throws InterruptedException {
+        // the global rate-limit is shared with every other test in this JVM
+        Thread.sleep(GLOBAL_RETRY_AFTER);
+    }
+
+    private WebhookClient newClient(long id, ScheduledExecutorService pool) {
+        return new WebhookClientBuilder(id, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .build();
+    }
+
+    private long captureDelay(ScheduledExecutorService pool, int times) {
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(pool, times(times)).schedule(any(Runnable.class), delay.capture(), any(TimeUnit.class));
+        return delay.getValue();
+    }
+
+    private void sendGlobalRateLimit(Headers headers, String body) {
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 429, headers, body));
+        WebhookClient limited = newClient(1, pool);
+        limited.send("Hello");
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool).schedule(drain.capture(), anyLong(), any(TimeUnit.class));
+        drain.getValue().run();
+    }
+
+    @Test
+    public void globalHeaderPausesAllClients() {
+        sendGlobalRateLimit(Headers.of(
+                "Retry-After", String.valueOf(GLOBAL_RETRY_AFTER),
+                "X-RateLimit-Global", "true",
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5"), "{}");
+
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        newClient(2, otherPool).send("World");
+        long delay = captureDelay(otherPool, 1);
+        Assert.assertTrue("Other client should wait for the global rate-limit, delay " + delay, delay > 0);
+    }
+
+    @Test
+    public void globalBodyPausesAllClients() {
+        sendGlobalRateLimit(Headers.of(
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5"), "{\"retry_after\":" + GLOBAL_RETRY_AFTER + ",\"global\":true}");
+
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        newClient(2, otherPool).send("World");
+        Assert.assertTrue(captureDelay(otherPool, 1) > 0);
+    }
+
+    @Test
+    public void localRateLimitOnlyPausesClient() {
+        sendGlobalRateLimit(Headers.of(
+                "Retry-After", String.valueOf(GLOBAL_RETRY_AFTER),
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5"), "{}");
+
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        newClient(2, otherPool).send("World");
+        Assert.assertTrue(captureDelay(otherPool, 1) <= 0);
+    }
+
+    private void sendAndDrain(WebhookClient client, ScheduledExecutorService pool, int drains) {
+        client.send("Hello");
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool, times(drains)).schedule(drain.capture(), anyLong(), any(TimeUnit.class));
+        drain.getValue().run();
+    }
+
+    @Test
+    public void sharedBucket() {
+        // the first client learns the bucket hash with a regular response
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 200, Headers.of(
+                "X-RateLimit-Bucket", "shared-bucket-test",
+                "X-RateLimit-Remaining", "4",
+                "X-RateLimit-Limit", "5"), "{}"));
+        ScheduledExecutorService firstPool = mock(ScheduledExecutorService.class);
+        WebhookClient first = newClient(1, firstPool);
+        sendAndDrain(first, firstPool, 1);
+
+        // the second client exhausts the same bucket
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 429, Headers.of(
+                "X-RateLimit-Bucket", "shared-bucket-test",
+                "Retry-After", "1000",
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5"), "{}"));
+        WebhookClient second = newClient(2, pool);
+        sendAndDrain(second, pool, 1);
+
+        // a client with another bucket is not affected
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 200, Headers.of(
+                "X-RateLimit-Bucket", "other-bucket-test",
+                "X-RateLimit-Remaining", "4",
+                "X-RateLimit-Limit", "5"), "{}"));
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        WebhookClient other = newClient(3, otherPool);
+        sendAndDrain(other, otherPool, 1);
+
+        first.send("World");
+        Assert.assertTrue("First client should wait for the shared bucket", captureDelay(firstPool, 2) > 0);
+        other.send("World");
+        Assert.assertTrue(captureDelay(otherPool, 2) <= 0);
+    }
+
+    @Test
+    public void noBackoffWithRemainingUses() {
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 200, Headers.of(
+                "X-RateLimit-Remaining", "3",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "5"), "{}"));
+        WebhookClient client = newClient(1, pool);
+        sendAndDrain(client, pool, 1);
+        client.send("World");
+        Assert.assertTrue(captureDelay(pool, 2) <= 0);
+    }
+
+    @Test
+    public void pacedClientWaitsForInterval() {
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 200, Headers.of(
+                "X-RateLimit-Remaining", "4",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "2"), "{}"));
+        WebhookClient client = new WebhookClientBuilder(1, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .setPacing(true)
+                .build();
+        sendAndDrain(client, pool, 1);
+        sendAndDrain(client, pool, 2);
+        long delay = captureDelay(pool, 3);
+        Assert.assertTrue("Paced request should wait, delay " + delay, delay > 0 && delay <= 500);
+        verify(httpClient, times(1)).newCall(any());
+    }
+
+    private WebhookClient newClient(long id, ScheduledExecutorService pool, File snapshot) {
+        return new WebhookClientBuilder(id, "token")
+                .setWait(false)
+                .setHttpClient(httpClient)
+                .setExecutorService(pool)
+                .setBucketSnapshot(snapshot)
+                .build();
+    }
+
+    @Test
+    public void snapshotRestoresBucket() throws Exception {
+        File snapshot = new File(folder.getRoot(), "buckets.json");
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 200, Headers.of(
+                "X-RateLimit-Remaining", "0",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "5"), "{}"));
+        WebhookClient client = newClient(1, pool, snapshot);
+        sendAndDrain(client, pool, 1);
+        // the drain is waiting for the reset and terminates the closed client
+        client.close();
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        verify(pool, times(2)).schedule(drain.capture(), anyLong(), any(TimeUnit.class));
+        drain.getValue().run();
+        Assert.assertTrue(snapshot.isFile());
+
+        ScheduledExecutorService restartedPool = mock(ScheduledExecutorService.class);
+        WebhookClient restarted = newClient(1, restartedPool, snapshot);
+        restarted.send("World");
+        long delay = captureDelay(restartedPool, 1);
+        Assert.assertTrue("Restored client should wait for the reset, delay " + delay, delay > 4000);
+        verify(httpClient, times(1)).newCall(any());
+    }
+
+    @Test
+    public void snapshotWrittenByLastClient() throws Exception {
+        File snapshot = new File(folder.getRoot(), "buckets.json");
+        when(httpClient.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 200, Headers.of(
+                "X-RateLimit-Remaining", "4",
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "5"), "{}"));
+        ScheduledExecutorService firstPool = mock(ScheduledExecutorService.class);
+        ScheduledExecutorService secondPool = mock(ScheduledExecutorService.class);
+        WebhookClient first = newClient(1, firstPool, snapshot);
+        WebhookClient second = newClient(2, secondPool, snapshot);
+        sendAndDrain(first, firstPool, 1);
+        sendAndDrain(second, secondPool, 1);
+
+        first.close();
+        Assert.assertFalse("Snapshot should only be written by the last client", snapshot.exists());
+        second.close();
+        String saved = new String(Files.readAllBytes(snapshot.toPath()), StandardCharsets.UTF_8);
+        Assert.assertTrue(saved, saved.contains("\"1\"") && saved.contains("\"2\""));
+    }
+
+    @Test
+    public void snapshotDropsStaleEntries() throws Exception {
+        File snapshot = new File(folder.getRoot(), "buckets.json");
+        long now = System.currentTimeMillis();
+        Files.write(snapshot.toPath(), ("{"
+                + "\"1\":{\"limit\":5,\"remaining\":0,\"reset\":" + (now - 1000) + "},"
+                + "\"2\":{\"limit\":5,\"remaining\":0,\"reset\":" + (now + 60000) + "}"
+                + "}").getBytes(StandardCharsets.UTF_8));
+
+        newClient(1, pool, snapshot).close();
+
+        String saved = new String(Files.readAllBytes(snapshot.toPath()), StandardCharsets.UTF_8);
+        Assert.assertFalse("Stale entry should be dropped: " + saved, saved.contains("\"1\""));
+        Assert.assertTrue(saved.contains("\"2\""));
+        newClient(1, pool, snapshot).send("Hello");
+        Assert.assertTrue(captureDelay(pool, 1) <= 0);
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        newClient(2, otherPool, snapshot).send("World");
+        Assert.assertTrue(captureDelay(otherPool, 1) > 0);
+    }
+}
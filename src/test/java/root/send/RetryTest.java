@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.RetryPolicy;
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.exception.HttpException;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import root.FakeDiscord;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class RetryTest {
+    private final FakeDiscord discord = new FakeDiscord();
+    private WebhookClient client;
+
+    @After
+    public void cleanup() throws IOException {
+        if (client != null)
+            client.close();
+        discord.close();
+    }
+
+    private WebhookClient newClient(RetryPolicy policy) {
+        client = new WebhookClientBuilder(1, "token")
+                .setBaseUrl(discord.getBaseUrl())
+                .setRetryPolicy(policy)
+                .build();
+        return client;
+    }
+
+    @Test
+    public void exponentialDelays() {
+        RetryPolicy policy = RetryPolicy.exponential(10, 10, 100, TimeUnit.MILLISECONDS).withJitter(0);
+        long[] delays = new long[6];
+        for (int i = 0; i < delays.length; i++)
+            delays[i] = policy.getDelay(i + 1);
+        Assert.assertArrayEquals(new long[]{10, 20, 40, 80, 100, 100}, delays);
+
+        RetryPolicy jittered = policy.withJitter(0.5);
+        for (int i = 0; i < 100; i++) {
+            long delay = jittered.getDelay(3);
+            Assert.assertTrue("Delay out of range " + delay, delay > 20 && delay <= 40);
+        }
+        Assert.assertEquals(Long.MAX_VALUE, RetryPolicy.exponential(100, 1, Long.MAX_VALUE, TimeUnit.MILLISECONDS).withJitter(0).getDelay(100));
+    }
+
+    @Test
+    public void retriesInOrder() throws Exception {
+        discord.failNext(2, 502).start();
+        WebhookClient client = newClient(RetryPolicy.exponential(3, 10, 100, TimeUnit.MILLISECONDS));
+        CompletableFuture<?>[] futures = new CompletableFuture[3];
+        for (int i = 0; i < futures.length; i++)
+            futures[i] = client.send("Message " + i);
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(Arrays.asList("Message 0", "Message 1", "Message 2"), discord.getMessages(1));
+        Assert.assertEquals(5, discord.getReceived());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        discord.failNext(3, 503).start();
+        WebhookClient client = newClient(RetryPolicy.exponential(2, 10, 100, TimeUnit.MILLISECONDS));
+        CompletableFuture<ReadonlyMessage> first = client.send("First");
+        CompletableFuture<ReadonlyMessage> second = client.send("Second");
+        try {
+            first.get(10, TimeUnit.SECONDS);
+            Assert.fail("First message should fail after two attempts");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof HttpException);
+            Assert.assertEquals(503, ((HttpException) e.getCause()).getCode());
+        }
+        Assert.assertEquals("Second", second.get(10, TimeUnit.SECONDS).getContent());
+        Assert.assertEquals(4, discord.getReceived());
+    }
+
+    @Test
+    public void notRetryableCode() throws Exception {
+        discord.failNext(1, 502).start();
+        WebhookClient client = newClient(RetryPolicy.exponential(3, 10, 100, TimeUnit.MILLISECONDS).withRetryableCodes(503));
+        try {
+            client.send("Hello").get(10, TimeUnit.SECONDS);
+            Assert.fail("502 should not be retried");
+        }
+        catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof HttpException);
+        }
+        Assert.assertEquals(1, discord.getReceived());
+    }
+
+    @Test
+    public void retriesDroppedConnection() throws Exception {
+        discord.failNext(1, 0).start();
+        WebhookClient client = newClient(RetryPolicy.exponential(3, 10, 100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals("Hello", client.send("Hello").get(10, TimeUnit.SECONDS).getContent());
+        Assert.assertEquals(Arrays.asList("Hello"), discord.getMessages(1));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import club.minnced.discord.webhook.receive.ReadonlyMessage;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import root.IOTestUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SharedPoolTest {
+    private static final int CLIENTS = 50;
+    private static final int POOL_SIZE = 2;
+
+    private final OkHttpClient httpClient = mock(OkHttpClient.class);
+    private final List<WebhookClient> clients = new ArrayList<>();
+
+    @Before
+    public void init() {
+        WebhookClientBuilder.setSharedPoolSize(POOL_SIZE);
+        when(httpClient.newCall(any())).thenAnswer(invocation -> {
+            Request request = invocation.getArgument(0);
+            // webhook 1 is rate-limited for the rest of the test
+            if (request.url().encodedPath().contains("/webhooks/1/")) {
+                return IOTestUtil.forgeCall(request, 429, Headers.of(
+                        "Retry-After", "60000",
+                        "X-RateLimit-Remaining", "0",
+                        "X-RateLimit-Limit", "5"), "{}");
+            }
+            Thread.sleep(2);
+            return IOTestUtil.forgeCall(request, 200, Headers.of(
+                    "X-RateLimit-Remaining", "1000",
+                    "X-RateLimit-Limit", "1000",
+                    "X-RateLimit-Reset-After", "60"), "{}");
+        });
+    }
+
+    @After
+    public void cleanup() {
+        clients.forEach(WebhookClient::close);
+        WebhookClientBuilder.setSharedPoolSize(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private WebhookClient newClient(long id) {
+        // daemon clients use their own shared pool, which is not used by other tests
+        WebhookClient client = new WebhookClientBuilder(id, "token")
+                .setWait(false)
+                .setDaemon(true)
+                .setHttpClient(httpClient)
+                .build();
+        clients.add(client);
+        return client;
+    }
+
+    private static int sharedThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isDaemon() && thread.getName().startsWith("Webhook-RateLimit Thread"))
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void boundedThreads() throws Exception {
+        List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+        for (int i = 2; i < CLIENTS + 2; i++)
+            futures.add(newClient(i).send("Hello"));
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        Assert.assertTrue("Clients should share the pool, threads " + sharedThreads(), sharedThreads() <= POOL_SIZE);
+    }
+
+    @Test
+    public void busyClientsDoNotStarveOthers() throws Exception {
+        // a single thread, which the busy client would keep for its whole backlog
+        WebhookClientBuilder.setSharedPoolSize(1);
+        newClient(1).send("Limited");
+        WebhookClient busy = newClient(2);
+        List<CompletableFuture<ReadonlyMessage>> backlog = new ArrayList<>();
+        for (int i = 0; i < 500; i++)
+            backlog.add(busy.send("Message " + i));
+
+        // drains hand the thread to other clients after a few requests
+        List<CompletableFuture<ReadonlyMessage>> futures = new ArrayList<>();
+        for (int i = 3; i < CLIENTS + 3; i++)
+            futures.add(newClient(i).send("Hello"));
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        int done = 0;
+        for (CompletableFuture<ReadonlyMessage> future : backlog) {
+            if (future.isDone())
+                done++;
+        }
+        Assert.assertTrue("Other clients should not wait for the backlog, sent " + done, done < backlog.size() / 2);
+        CompletableFuture.allOf(backlog.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void closeKeepsPoolRunning() throws Exception {
+        WebhookClient first = newClient(2);
+        WebhookClient second = newClient(3);
+        first.send("Hello").get(10, TimeUnit.SECONDS);
+        first.close();
+        Assert.assertTrue(first.isShutdown());
+        second.send("World").get(10, TimeUnit.SECONDS);
+        newClient(4).send("Again").get(10, TimeUnit.SECONDS);
+    }
+}
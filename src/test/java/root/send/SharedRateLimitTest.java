@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018-2020 Florian Spieß
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package root.send;
+
+import club.minnced.discord.webhook.WebhookClient;
+import club.minnced.discord.webhook.WebhookClientBuilder;
+import okhttp3.Headers;
+import okhttp3.OkHttpClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import root.IOTestUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class SharedRateLimitTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private File otherProcess;
+
+    @Before
+    public void init() throws IOException {
+        file = new File(folder.getRoot(), "ratelimit.bin");
+        // a second name for the same file gets its own mapping, like another process would
+        otherProcess = new File(folder.getRoot(), "ratelimit-link.bin");
+        new WebhookClientBuilder(1234, "token")
+                .setHttpClient(mock(OkHttpClient.class))
+                .setExecutorService(mock(ScheduledExecutorService.class))
+                .setSharedRateLimit(file)
+                .build();
+        Files.createLink(otherProcess.toPath(), file.toPath());
+    }
+
+    private static OkHttpClient respond(String remaining) {
+        OkHttpClient http = mock(OkHttpClient.class);
+        when(http.newCall(any())).thenAnswer(invocation -> IOTestUtil.forgeCall(invocation.getArgument(0), 200, Headers.of(
+                "X-RateLimit-Remaining", remaining,
+                "X-RateLimit-Limit", "5",
+                "X-RateLimit-Reset-After", "5"), "{}"));
+        return http;
+    }
+
+    private static WebhookClient newClient(File file, OkHttpClient http, ScheduledExecutorService pool) {
+        return new WebhookClientBuilder(1234, "token")
+                .setWait(false)
+                .setHttpClient(http)
+                .setExecutorService(pool)
+                .setSharedRateLimit(file)
+                .build();
+    }
+
+    private static ArgumentCaptor<Long> captureSchedule(ScheduledExecutorService pool, int times, ArgumentCaptor<Runnable> drain) {
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(pool, times(times)).schedule(drain.capture(), delay.capture(), any(TimeUnit.class));
+        return delay;
+    }
+
+    @Test
+    public void exhaustedByOtherProcess() {
+        ScheduledExecutorService pool = mock(ScheduledExecutorService.class);
+        WebhookClient client = newClient(file, respond("0"), pool);
+        client.send("Hello");
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        captureSchedule(pool, 1, drain);
+        drain.getValue().run();
+
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        newClient(otherProcess, respond("4"), otherPool).send("World");
+        long delay = captureSchedule(otherPool, 1, ArgumentCaptor.forClass(Runnable.class)).getValue();
+        Assert.assertTrue("Other process should wait for the bucket reset, delay " + delay, delay > 0);
+    }
+
+    @Test
+    public void sharedRequestPool() {
+        ScheduledExecutorService pool = mock(ScheduledExecutorService.class);
+        WebhookClient client = newClient(file, respond("3"), pool);
+        client.send("Hello");
+        ArgumentCaptor<Runnable> drain = ArgumentCaptor.forClass(Runnable.class);
+        captureSchedule(pool, 1, drain);
+        drain.getValue().run();
+
+        // the other process only learns about its own requests from discord
+        OkHttpClient otherHttp = respond("4");
+        ScheduledExecutorService otherPool = mock(ScheduledExecutorService.class);
+        WebhookClient other = newClient(otherProcess, otherHttp, otherPool);
+        for (int i = 0; i < 5; i++)
+            other.send("Message " + i);
+        ArgumentCaptor<Runnable> otherDrain = ArgumentCaptor.forClass(Runnable.class);
+        captureSchedule(otherPool, 1, otherDrain);
+        otherDrain.getValue().run();
+
+        verify(otherHttp, times(3)).newCall(any());
+        Assert.assertTrue(captureSchedule(otherPool, 2, otherDrain).getValue() > 0);
+    }
+}